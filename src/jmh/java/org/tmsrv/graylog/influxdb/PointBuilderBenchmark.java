@@ -0,0 +1,149 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.plugin.Message;
+
+import org.joda.time.DateTime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Filter, map and encode hot path of the output, on synthetic Graylog messages.
+ *
+ * Run with {@code mvn -P benchmark verify} (see README), the gc profiler reports the
+ * allocation rate next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointBuilderBenchmark {
+    private static final int MESSAGES = 4096;
+
+    private static final String[] LEVELS = { "DEBUG", "INFO", "INFO", "INFO", "WARN", "ERROR" };
+    private static final String[] STATUSES = { "up", "up", "up", "down", "degraded" };
+    private static final String[] METHODS = { "GET", "GET", "GET", "POST", "PUT", "DELETE" };
+
+    @State(Scope.Thread)
+    public static class Workload {
+        /**
+         * Number of extra numeric fields per message, half of them being mapped.
+         */
+        @Param({ "5", "20", "50" })
+        public int fieldCount;
+
+        /**
+         * Filter mix: none, existence checks, equality checks, regular expressions or a mix of all.
+         */
+        @Param({ "none", "exists", "equals", "regex", "mixed" })
+        public String filters;
+
+        /**
+         * Number of cached series keys (0 to encode tags for each message).
+         */
+        @Param({ "0", "10000" })
+        public int seriesCache;
+
+        PointBuilder builder;
+        Message[] messages;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random random = new Random(42);
+            List<String> fields = new ArrayList<String>(Arrays.asList("duration", "I:bytes", "status=up", "level~ERROR|WARN", "S:method"));
+
+            for (int i = 0; i < this.fieldCount; i += 2) {
+                fields.add("metric_" + i);
+            }
+            this.builder = new PointBuilder("graylog", filters(this.filters), Arrays.asList("host", "service"), fields, this.seriesCache, 0, 0, CardinalityGuard.Overflow.BUCKET, null, null);
+            this.messages = new Message[MESSAGES];
+            for (int i = 0; i < MESSAGES; i++) {
+                Message message = new Message("synthetic message " + i, "node-" + random.nextInt(8), new DateTime(1500000000000L + i));
+
+                message.addField("host", "host-" + random.nextInt(32));
+                message.addField("service", "service-" + random.nextInt(4));
+                message.addField("level", LEVELS[random.nextInt(LEVELS.length)]);
+                message.addField("status", STATUSES[random.nextInt(STATUSES.length)]);
+                message.addField("method", METHODS[random.nextInt(METHODS.length)]);
+                message.addField("path", "/api/v1/resource/" + random.nextInt(1000));
+                message.addField("duration", random.nextDouble() * 1000);
+                message.addField("bytes", String.valueOf(random.nextInt(100000)));
+                for (int j = 0; j < this.fieldCount; j++) {
+                    message.addField("metric_" + j, random.nextInt(10) == 0 ? String.valueOf(random.nextDouble()) : random.nextDouble());
+                }
+                this.messages[i] = message;
+            }
+        }
+
+        Message next() {
+            return this.messages[this.next++ & (MESSAGES - 1)];
+        }
+
+        private static List<String> filters(String mix) {
+            switch (mix) {
+            case "none":
+                return Collections.emptyList();
+            case "exists":
+                return Arrays.asList("host", "duration", "!debug_field");
+            case "equals":
+                return Arrays.asList("method=GET", "status!=down");
+            case "regex":
+                return Arrays.asList("path~/api/v1/.*", "level~INFO|WARN|ERROR", "method!~PUT|DELETE");
+            case "mixed":
+                return Arrays.asList("path~/api/v1/resource/[0-9]+", "host", "method=GET", "level~INFO|WARN|ERROR", "!debug_field");
+            }
+            throw new IllegalArgumentException("Unknown filter mix (" + mix + ")");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({ "1", "100", "1000" })
+        public int batchSize;
+    }
+
+    /**
+     * Encode a single message, as in write(Message).
+     */
+    @Benchmark
+    public int single(Workload workload) {
+        LineProtocolEncoder encoder = LineProtocolEncoder.local();
+
+        workload.builder.buildPoint(encoder, workload.next(), "graylog");
+        return encoder.size();
+    }
+
+    /**
+     * Encode a batch of messages in a single buffer, as in write(List).
+     */
+    @Benchmark
+    public int batch(Workload workload, Batch batch) {
+        LineProtocolEncoder encoder = LineProtocolEncoder.local();
+
+        for (int i = 0; i < batch.batchSize; i++) {
+            workload.builder.buildPoint(encoder, workload.next(), "graylog");
+        }
+        return encoder.size();
+    }
+}
@@ -0,0 +1,352 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Stand-in for the HTTP API of InfluxDB 1.x ({@code /ping}, {@code /query} and {@code /write}), counting what it receives.
+ *
+ * Written lines are parsed just enough to read their {@code created} integer field (ms, the
+ * origin of the end-to-end latency against the time they're received, their timestamp if
+ * missing) and their {@code seq} integer field, which tells apart lines delivered once,
+ * several times (retries) or never. Faults can be injected:
+ *
+ * <ul>
+ * <li>latency: each write waits for a fixed delay before being answered;</li>
+ * <li>errors: a fraction of the writes is answered with 503 without storing anything;</li>
+ * <li>partial writes: a fraction of the lines is rejected, the others being stored, and the
+ * write is answered with 400 like InfluxDB does on a field type conflict. Rejected lines
+ * are chosen by their sequence number, so they stay rejected when the client retries them.</li>
+ * </ul>
+ */
+final class FakeInfluxServer implements Closeable {
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private static final byte[] SEQ = "seq=".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CREATED = "created=".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final long _latencyMillis;
+    private final double _errorRate;
+    private final long _partialThreshold;
+
+    private final LongAdder _requests = new LongAdder();
+    private final LongAdder _errors = new LongAdder();
+    private final LongAdder _partials = new LongAdder();
+    private final LongAdder _lines = new LongAdder();
+    private final LongAdder _bytes = new LongAdder();
+    private final AtomicLong _lastWrite = new AtomicLong();
+
+    private final BitSet _delivered = new BitSet();
+    private final BitSet _rejected = new BitSet();
+    private final long[] _samples = new long[MAX_SAMPLES];
+    private long _sampleCount;
+
+
+    /**
+     * @param latencyMillis delay before answering each write
+     * @param errorRate fraction of the writes failing with 503
+     * @param partialRate fraction of the lines rejected by partial writes
+     */
+    FakeInfluxServer(long latencyMillis, double errorRate, double partialRate) throws IOException {
+        this._latencyMillis = latencyMillis;
+        this._errorRate = errorRate;
+        this._partialThreshold = (long)(partialRate * (1L << 53));
+        this._server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        this._executor = Executors.newFixedThreadPool(32);
+        this._server.setExecutor(this._executor);
+        this._server.createContext("/ping", this::ping);
+        this._server.createContext("/query", this::query);
+        this._server.createContext("/write", this::write);
+        this._server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + this._server.getAddress().getPort();
+    }
+
+    long requests() {
+        return this._requests.sum();
+    }
+
+    /**
+     * Writes answered with an injected 503.
+     */
+    long errors() {
+        return this._errors.sum();
+    }
+
+    /**
+     * Writes answered with an injected partial write.
+     */
+    long partials() {
+        return this._partials.sum();
+    }
+
+    /**
+     * Lines stored, including duplicates.
+     */
+    long lines() {
+        return this._lines.sum();
+    }
+
+    /**
+     * Bytes of line protocol received (uncompressed).
+     */
+    long bytes() {
+        return this._bytes.sum();
+    }
+
+    /**
+     * Time of the last stored line (ms).
+     */
+    long lastWrite() {
+        return this._lastWrite.get();
+    }
+
+    /**
+     * Distinct sequence numbers stored.
+     */
+    synchronized int delivered() {
+        return this._delivered.cardinality();
+    }
+
+    /**
+     * Distinct sequence numbers rejected by injected partial writes (and never stored).
+     */
+    synchronized int rejected() {
+        BitSet rejected = (BitSet)this._rejected.clone();
+
+        rejected.andNot(this._delivered);
+        return rejected.cardinality();
+    }
+
+    /**
+     * End-to-end latency percentiles of the stored lines (ms), over a uniform sample.
+     */
+    synchronized long[] latencies(double... percentiles) {
+        int count = (int)Math.min(this._sampleCount, MAX_SAMPLES);
+        long[] sorted = Arrays.copyOf(this._samples, count);
+        long[] values = new long[percentiles.length];
+
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length && count > 0; i++) {
+            values[i] = sorted[Math.min(count - 1, (int)Math.ceil(percentiles[i] * count) - 1)];
+        }
+        return values;
+    }
+
+    @Override
+    public void close() {
+        this._server.stop(0);
+        this._executor.shutdownNow();
+    }
+
+    private void ping(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("X-Influxdb-Version", "1.7-fake");
+        respond(exchange, 204, null);
+    }
+
+    /**
+     * Answer any statement (CREATE DATABASE, SHOW FIELD KEYS...) with an empty result.
+     */
+    private void query(HttpExchange exchange) throws IOException {
+        read(exchange);
+        respond(exchange, 200, "{\"results\":[{\"statement_id\":0}]}");
+    }
+
+    private void write(HttpExchange exchange) throws IOException {
+        byte[] body = read(exchange);
+        long now = System.currentTimeMillis();
+
+        this._requests.increment();
+        if (this._latencyMillis > 0) {
+            try {
+                Thread.sleep(this._latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (this._errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this._errorRate) {
+            this._errors.increment();
+            respond(exchange, 503, "{\"error\":\"injected failure\"}");
+            return;
+        }
+
+        int lines = 0;
+        int dropped = 0;
+        long[] latencies = new long[64];
+        long[] accepted = new long[64];
+
+        for (int start = 0; start < body.length; ) {
+            int end = start;
+
+            while (end < body.length && body[end] != '\n') {
+                end++;
+            }
+            if (end > start) {
+                long seq = integer(body, start, end, SEQ);
+
+                if (seq >= 0 && (Hash64.mix(seq) >>> 11) < this._partialThreshold) {
+                    synchronized (this) {
+                        this._rejected.set((int)seq);
+                    }
+                    dropped++;
+                } else {
+                    if (lines == accepted.length) {
+                        accepted = Arrays.copyOf(accepted, lines * 2);
+                        latencies = Arrays.copyOf(latencies, lines * 2);
+                    }
+                    long created = integer(body, start, end, CREATED);
+
+                    accepted[lines] = seq;
+                    latencies[lines] = now - (created >= 0 ? created : TimeUnit.NANOSECONDS.toMillis(timestamp(body, start, end)));
+                    lines++;
+                }
+            }
+            start = end + 1;
+        }
+        this.store(accepted, latencies, lines);
+        this._lines.add(lines);
+        this._bytes.add(body.length);
+        if (lines > 0) {
+            this._lastWrite.accumulateAndGet(System.currentTimeMillis(), Math::max);
+        }
+        if (dropped > 0) {
+            this._partials.increment();
+            respond(exchange, 400, "{\"error\":\"partial write: field type conflict: injected dropped=" + dropped + "\"}");
+            return;
+        }
+        respond(exchange, 204, null);
+    }
+
+    /**
+     * Record stored lines, sampling latencies uniformly once the reservoir is full.
+     */
+    private synchronized void store(long[] seqs, long[] latencies, int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < count; i++) {
+            if (seqs[i] >= 0) {
+                this._delivered.set((int)seqs[i]);
+            }
+
+            long index = this._sampleCount++;
+
+            if (index < MAX_SAMPLES) {
+                this._samples[(int)index] = latencies[i];
+            } else {
+                index = random.nextLong(index + 1);
+                if (index < MAX_SAMPLES) {
+                    this._samples[(int)index] = latencies[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Value of a non-negative integer field of a line.
+     *
+     * @param key field key followed by '='
+     * @return -1 if missing
+     */
+    private static long integer(byte[] data, int start, int end, byte[] key) {
+        for (int i = start; i + key.length + 1 < end; i++) {
+            if ((data[i] == ' ' || data[i] == ',') && matches(data, i + 1, key)) {
+                long value = 0;
+
+                for (int j = i + 1 + key.length; j < end && data[j] >= '0' && data[j] <= '9'; j++) {
+                    value = value * 10 + (data[j] - '0');
+                }
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] data, int offset, byte[] key) {
+        for (int k = 0; k < key.length; k++) {
+            if (data[offset + k] != key[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Timestamp of a line, after its last space (ns).
+     */
+    private static long timestamp(byte[] data, int start, int end) {
+        int i = end;
+
+        while (i > start && data[i - 1] != ' ') {
+            i--;
+        }
+
+        long value = 0;
+
+        for (; i < end && data[i] >= '0' && data[i] <= '9'; i++) {
+            value = value * 10 + (data[i] - '0');
+        }
+        return value;
+    }
+
+    private static byte[] read(HttpExchange exchange) throws IOException {
+        InputStream input = exchange.getRequestBody();
+
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            input = new GZIPInputStream(input);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+
+        for (int count; (count = input.read(buffer)) > 0; ) {
+            output.write(buffer, 0, count);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, data.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(data);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+
+import org.joda.time.DateTime;
+
+
+/**
+ * Drives {@link InfluxOutput#write(List)} at a target rate against a {@link FakeInfluxServer},
+ * then reports sustained throughput, end-to-end latency percentiles and loss.
+ *
+ * Run with {@code mvn -P load verify} (see README). Arguments are {@code key=value} pairs:
+ *
+ * <ul>
+ * <li>{@code rate}: messages per second offered to the output (total over all threads);</li>
+ * <li>{@code duration}: seconds of load;</li>
+ * <li>{@code batch}: messages per call to write(List);</li>
+ * <li>{@code threads}: threads calling the output concurrently, like Graylog's output buffer processors;</li>
+ * <li>{@code latency}, {@code errors}, {@code partial}: faults injected by the server (see {@link FakeInfluxServer});</li>
+ * <li>any other key is passed to the output as an {@code influx_} parameter (eg. {@code writer_threads=4}).</li>
+ * </ul>
+ *
+ * Each message carries a unique {@code seq} integer field, lines being told apart by it on
+ * the server, and a {@code created} integer field (ms) the server measures latency from.
+ * Messages are timestamped when they're created, moved forward by a millisecond when another
+ * message of the same series already has that timestamp: InfluxDB would only keep one point
+ * per series and timestamp.
+ */
+public final class LoadGenerator {
+    private static final String[] HOSTS = new String[16];
+    private static final String[] SERVICES = { "api", "web", "worker", "db" };
+    private static final String[] STATUSES = { "up", "up", "up", "down" };
+
+    static {
+        for (int i = 0; i < HOSTS.length; i++) {
+            HOSTS[i] = "host-" + i;
+        }
+    }
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Argument error (" + arg + ", expected key=value)");
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        int rate = Integer.parseInt(take(options, "rate", "20000"));
+        int duration = Integer.parseInt(take(options, "duration", "30"));
+        int batch = Integer.parseInt(take(options, "batch", "500"));
+        int threads = Integer.parseInt(take(options, "threads", "1"));
+        long latency = Long.parseLong(take(options, "latency", "0"));
+        double errors = Double.parseDouble(take(options, "errors", "0"));
+        double partial = Double.parseDouble(take(options, "partial", "0"));
+
+        try (FakeInfluxServer server = new FakeInfluxServer(latency, errors, partial)) {
+            Map<String, Object> config = new HashMap<String, Object>();
+
+            config.put("influx_url", server.url());
+            config.put("influx_user", "load");
+            config.put("influx_password", "load");
+            config.put("influx_database", "load");
+            config.put("influx_measurement", "load");
+            config.put("influx_filters", new ArrayList<String>());
+            config.put("influx_tags", Arrays.asList("host", "service"));
+            config.put("influx_fields", Arrays.asList("duration", "I:bytes", "status=up", "I:seq", "I:created"));
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                String value = option.getValue();
+
+                config.put("influx_" + option.getKey(), value.matches("-?[0-9]+") ? (Object)Integer.valueOf(value) : value);
+            }
+
+            MetricRegistry registry = new MetricRegistry();
+            InfluxOutput output = new InfluxOutput(registry, new InfluxClientRegistry(registry), new Configuration(config));
+            AtomicLong sequence = new AtomicLong();
+            AtomicLong[] clocks = new AtomicLong[HOSTS.length * SERVICES.length];
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(duration);
+            Thread[] producers = new Thread[threads];
+
+            for (int i = 0; i < clocks.length; i++) {
+                clocks[i] = new AtomicLong();
+            }
+
+            System.out.println(String.format(Locale.ROOT, "Offering %d msg/s for %d s in batches of %d (%d threads) to %s", rate, duration, batch, threads, server.url()));
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+
+                producers[t] = new Thread(() -> produce(output, sequence, clocks, rate / (double)threads, batch, start, end, seed), "load-" + t);
+                producers[t].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            long offered = System.nanoTime();
+
+            // stopping waits for the queued points to be written
+            output.stop();
+
+            long sent = sequence.get();
+            long delivered = server.delivered();
+            long rejected = server.rejected();
+            long elapsedMillis = Math.max(1, server.lastWrite() - startMillis);
+            long[] latencies = server.latencies(0.5, 0.9, 0.99, 0.999, 1.0);
+
+            System.out.println(String.format(Locale.ROOT, "Offered:    %d messages, %.0f msg/s", sent, sent / ((offered - start) / 1e9)));
+            System.out.println(String.format(Locale.ROOT, "Delivered:  %d messages, %.0f msg/s sustained, %d lines (with duplicates), %.1f MB", delivered, delivered * 1000.0 / elapsedMillis, server.lines(), server.bytes() / 1e6));
+            System.out.println(String.format(Locale.ROOT, "Latency:    p50 %d ms, p90 %d ms, p99 %d ms, p99.9 %d ms, max %d ms", latencies[0], latencies[1], latencies[2], latencies[3], latencies[4]));
+            System.out.println(String.format(Locale.ROOT, "Rejected:   %d messages (injected partial writes)", rejected));
+            System.out.println(String.format(Locale.ROOT, "Lost:       %d messages (%.3f%%)", sent - delivered - rejected, sent > 0 ? (sent - delivered - rejected) * 100.0 / sent : 0.0));
+            System.out.println(String.format(Locale.ROOT, "Server:     %d writes, %d injected errors, %d partial writes", server.requests(), server.errors(), server.partials()));
+            System.out.println(String.format(Locale.ROOT, "Output:     %d failed, %d retried, %d spooled, %d dropped batches, %d rejected points",
+                count(registry, "batches.failed"), count(registry, "batches.retried"), count(registry, "batches.spooled"), count(registry, "batches.dropped"), count(registry, "points.rejected")));
+        }
+    }
+
+    /**
+     * Offer batches of messages to the output, paced to a rate.
+     *
+     * @param clocks last timestamp of each series (host and service)
+     */
+    private static void produce(InfluxOutput output, AtomicLong sequence, AtomicLong[] clocks, double rate, int batch, long start, long end, long seed) {
+        Random random = new Random(seed);
+        long sent = 0;
+
+        try {
+            for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+                long due = start + (long)(sent * 1e9 / rate);
+
+                if (due > now) {
+                    TimeUnit.NANOSECONDS.sleep(due - now);
+                }
+
+                List<Message> messages = new ArrayList<Message>(batch);
+
+                for (int i = 0; i < batch; i++) {
+                    int host = random.nextInt(HOSTS.length);
+                    int service = random.nextInt(SERVICES.length);
+                    long created = System.currentTimeMillis();
+                    long timestamp = clocks[host * SERVICES.length + service].updateAndGet(last -> Math.max(last + 1, created));
+                    Message message = new Message("load message", "node-" + random.nextInt(4), new DateTime(timestamp));
+
+                    message.addField("host", HOSTS[host]);
+                    message.addField("service", SERVICES[service]);
+                    message.addField("status", STATUSES[random.nextInt(STATUSES.length)]);
+                    message.addField("duration", random.nextDouble() * 1000);
+                    message.addField("bytes", String.valueOf(random.nextInt(100000)));
+                    message.addField("seq", sequence.getAndIncrement());
+                    message.addField("created", created);
+                    messages.add(message);
+                }
+                output.write(messages);
+                sent += batch;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new IllegalStateException("Write error (" + e + ")", e);
+        }
+    }
+
+    private static String take(Map<String, String> options, String key, String defaultValue) {
+        String value = options.remove(key);
+
+        return value != null ? value : defaultValue;
+    }
+
+    private static long count(MetricRegistry registry, String suffix) {
+        long count = 0;
+
+        for (Map.Entry<String, Meter> entry : registry.getMeters().entrySet()) {
+            if (entry.getKey().endsWith("." + suffix)) {
+                count += entry.getValue().getCount();
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,90 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Adapts the batch size of a write pipeline to the server, and paces retries of failed writes.
+ *
+ * The batch size follows AIMD: it grows by a fixed step after each write completing within
+ * the target latency, and is halved after a slower write or a failure, between a floor and
+ * the configured batch size. Retries wait for a random delay up to an exponentially growing
+ * bound (full jitter), so that writers don't hammer a recovering server in lockstep.
+ */
+final class BatchController {
+    private static final int STEPS = 32;
+    private static final int MIN_FRACTION = 64;
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private final int _maxSize;
+    private final int _minSize;
+    private final int _step;
+    private final long _targetNanos;
+    private final int _retries;
+    private final long _backoffMillis;
+
+    private volatile int _size;
+
+
+    /**
+     * @param maxSize configured batch size
+     * @param targetLatencyMillis latency above which batches shrink (0 to keep the size fixed)
+     * @param retries number of retries of a failed write
+     * @param backoffMillis bound of the delay before the first retry, doubled for each following one
+     */
+    BatchController(int maxSize, long targetLatencyMillis, int retries, long backoffMillis) {
+        this._maxSize = maxSize;
+        this._minSize = Math.max(1, maxSize / MIN_FRACTION);
+        this._step = Math.max(1, maxSize / STEPS);
+        this._targetNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this._retries = retries;
+        this._backoffMillis = backoffMillis;
+        this._size = maxSize;
+    }
+
+    /**
+     * Current batch size.
+     */
+    int size() {
+        return this._size;
+    }
+
+    int retries() {
+        return this._retries;
+    }
+
+    /**
+     * Record a successful write.
+     */
+    synchronized void succeeded(long latencyNanos) {
+        if (this._targetNanos <= 0) {
+            return;
+        }
+        if (latencyNanos > this._targetNanos) {
+            this._size = Math.max(this._minSize, this._size / 2);
+        } else if (this._size < this._maxSize) {
+            this._size = Math.min(this._maxSize, this._size + this._step);
+        }
+    }
+
+    /**
+     * Record a write which failed because of the server or the size of the batch.
+     */
+    synchronized void failed() {
+        if (this._targetNanos > 0) {
+            this._size = Math.max(this._minSize, this._size / 2);
+        }
+    }
+
+    /**
+     * Delay before a retry.
+     *
+     * @param attempt number of the retry, from 0
+     */
+    long backoff(int attempt) {
+        long bound = Math.min(MAX_BACKOFF_MS, this._backoffMillis << Math.min(attempt, 20));
+
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound + 1) : 0;
+    }
+}
@@ -0,0 +1,242 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Caps the number of distinct values of each tag over a sliding window.
+ *
+ * Distinct values are estimated with a HyperLogLog sketch per tag, split into slots covering
+ * a fraction of the window each: the oldest slot is cleared as time goes by and the estimate
+ * is the union of all slots. Once the estimate crosses the limit, only values seen recently
+ * (during the current and previous slot) are kept, other values are replaced by an overflow
+ * bucket or dropped until the cardinality goes back under the limit.
+ *
+ * Recent values are only recorded once the estimate gets past half the limit, and at most
+ * {@link #MAX_RECENT} of them per slot: below that, a value costs a hash and a register read.
+ * The estimate is only recomputed when registers change, which values already seen don't do,
+ * every {@link #ESTIMATE_INTERVAL} changes. A limit of at most {@link #MAX_RECENT} values can
+ * be crossed within that many changes: recent values are then recorded from the start, and
+ * the estimate recomputed on every change until it's past twice the limit.
+ * Sketch registers are updated without synchronization, a lost update only affects the
+ * estimate marginally.
+ */
+final class CardinalityGuard {
+    enum Overflow {
+        /** Replace excess values by {@link #OVERFLOW_VALUE}. */
+        BUCKET,
+        /** Drop the tag from points with an excess value. */
+        DROP,
+    }
+
+    static final String OVERFLOW_VALUE = "_overflow";
+
+    private static final Logger LOG = LoggerFactory.getLogger(CardinalityGuard.class);
+
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int SLOTS = 4;
+    private static final int ESTIMATE_INTERVAL = 64;
+
+    static final int MAX_RECENT = 4096;
+
+    private final String[] _tags;
+    private final int _limit;
+    private final int _recent;
+    private final boolean _small;
+    private final long _slotMillis;
+    private final Overflow _overflow;
+    private final Tag[] _guards;
+    private final LongAdder _overflowed = new LongAdder();
+
+
+    /**
+     * @param tags tag keys, in the order of the values to check
+     * @param limit maximum number of distinct values per tag
+     * @param windowMillis length of the sliding window
+     */
+    CardinalityGuard(String[] tags, int limit, long windowMillis, Overflow overflow) {
+        this._tags = tags;
+        this._limit = limit;
+        this._recent = Math.min(limit, MAX_RECENT);
+        this._small = limit <= MAX_RECENT;
+        this._slotMillis = Math.max(1, windowMillis / SLOTS);
+        this._overflow = overflow;
+        this._guards = new Tag[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            this._guards[i] = new Tag(tags[i]);
+        }
+    }
+
+    String[] tags() {
+        return this._tags;
+    }
+
+    /**
+     * Replace excess tag values (in place) by the overflow bucket or null.
+     *
+     * @param values tag values (null if missing), in the order of the tag keys
+     */
+    void apply(Object[] values, long now) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+
+            String value = String.valueOf(values[i]);
+
+            if (value.isEmpty()) {
+                continue;
+            }
+            if (this._guards[i].admit(value, now)) {
+                values[i] = value;
+            } else {
+                values[i] = this._overflow == Overflow.BUCKET ? OVERFLOW_VALUE : null;
+                this._overflowed.increment();
+            }
+        }
+    }
+
+    /**
+     * Estimated number of distinct values of the i-th tag over the window.
+     */
+    long cardinality(int i) {
+        return this._guards[i]._estimate;
+    }
+
+    /**
+     * Number of tag values replaced or dropped so far.
+     */
+    long overflowed() {
+        return this._overflowed.sum();
+    }
+
+    private final class Tag {
+        private final String _key;
+        private final byte[][] _slots = new byte[SLOTS][REGISTERS];
+        private final long[] _epochs = new long[SLOTS];
+        // register changes since the last estimate, lost increments only delay it
+        private int _changes;
+
+        private volatile long _epoch = Long.MIN_VALUE;
+        private volatile long _estimate;
+        private volatile boolean _tracking;
+        private volatile boolean _overflowing;
+        private volatile Set<String> _current = ConcurrentHashMap.newKeySet();
+        private volatile Set<String> _previous = ConcurrentHashMap.newKeySet();
+
+        Tag(String key) {
+            this._key = key;
+            this._tracking = CardinalityGuard.this._small;
+            Arrays.fill(this._epochs, Long.MIN_VALUE);
+        }
+
+        /**
+         * Record a value and check whether it can be kept.
+         */
+        boolean admit(String value, long now) {
+            // a clock going backwards keeps recording into the current slot
+            long epoch = Math.max(now / CardinalityGuard.this._slotMillis, this._epoch);
+
+            if (epoch != this._epoch) {
+                this.rotate(epoch);
+            }
+
+            long hash = Hash64.hash(value);
+            byte[] registers = this._slots[(int)Math.floorMod(epoch, (long)SLOTS)];
+            int index = (int)(hash >>> (64 - PRECISION));
+            byte rank = (byte)(Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+
+            if (registers[index] < rank) {
+                registers[index] = rank;
+                if (++this._changes % ESTIMATE_INTERVAL == 0 || (CardinalityGuard.this._small && this._estimate < 2L * CardinalityGuard.this._limit)) {
+                    this.update();
+                }
+            }
+
+            if (this._overflowing) {
+                return this._current.contains(value) || this._previous.contains(value);
+            }
+            if (this._tracking && this._current.size() < CardinalityGuard.this._recent) {
+                this._current.add(value);
+            }
+            return true;
+        }
+
+        /**
+         * Move to a new slot, clearing the registers it held from the previous window.
+         */
+        private synchronized void rotate(long epoch) {
+            if (epoch <= this._epoch) {
+                return;
+            }
+
+            int slot = (int)Math.floorMod(epoch, (long)SLOTS);
+
+            if (this._epochs[slot] != epoch) {
+                Arrays.fill(this._slots[slot], (byte)0);
+                this._epochs[slot] = epoch;
+            }
+            if (!this._overflowing) {
+                // keep recently seen values, the ones to admit if the limit is crossed
+                this._previous = this._current;
+                this._current = ConcurrentHashMap.newKeySet();
+            }
+            this._epoch = epoch;
+            this.update();
+        }
+
+        /**
+         * Estimate the cardinality over the window and switch overflow mode accordingly.
+         */
+        private synchronized void update() {
+            boolean[] live = new boolean[SLOTS];
+            double sum = 0.0;
+            int zeros = 0;
+
+            // slots older than the window (not recorded into for a while) are ignored
+            for (int j = 0; j < SLOTS; j++) {
+                live[j] = this._epochs[j] != Long.MIN_VALUE && this._epochs[j] > this._epoch - SLOTS;
+            }
+            for (int i = 0; i < REGISTERS; i++) {
+                int rank = 0;
+
+                for (int j = 0; j < SLOTS; j++) {
+                    if (live[j]) {
+                        rank = Math.max(rank, this._slots[j][i]);
+                    }
+                }
+                sum += 1.0 / (1L << rank);
+                if (rank == 0) {
+                    zeros++;
+                }
+            }
+
+            double estimate = 0.7213 / (1.0 + 1.079 / REGISTERS) * REGISTERS * REGISTERS / sum;
+
+            if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                // small range correction (linear counting)
+                estimate = REGISTERS * Math.log((double)REGISTERS / zeros);
+            }
+            this._estimate = Math.round(estimate);
+
+            int limit = CardinalityGuard.this._limit;
+
+            this._tracking = CardinalityGuard.this._small || this._estimate > limit / 2;
+            if (!this._overflowing && this._estimate > limit) {
+                this._overflowing = true;
+                LOG.warn("InfluxDB tag has too many distinct values, excess values are " + (CardinalityGuard.this._overflow == Overflow.BUCKET ? "replaced by " + OVERFLOW_VALUE : "dropped") + " (" + this._key + ", " + this._estimate + " > " + limit + ")");
+            } else if (this._overflowing && this._estimate <= limit) {
+                this._overflowing = false;
+                LOG.info("InfluxDB tag is back under its distinct values limit (" + this._key + ", " + this._estimate + " <= " + limit + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Known types of the fields of a measurement in each database, enforced before encoding.
+ *
+ * InfluxDB 1.x rejects a whole batch when one of its points carries a field with another type
+ * than the one already stored. Types only come from the server: they're seeded from
+ * {@code SHOW FIELD KEYS} and learned from the lines of writes it acknowledged, the first type
+ * known for a field being kept. Until then, values are written as they are. A value of
+ * another type than the known one is either coerced to it (dropped if it can't be) or
+ * diverted to a field suffixed with its own type (eg. {@code duration_string}).
+ *
+ * Learning runs on the thread writing to the server, which may be shared with other outputs:
+ * only databases this schema was asked about are learned, from at most
+ * {@link #LEARN_BATCHES} batches carrying the measurement each, and field keys are matched
+ * against the escaped keys in the batch without decoding them.
+ */
+final class FieldSchema {
+    enum Type {
+        FLOAT,
+        INTEGER,
+        STRING,
+        BOOLEAN,
+    }
+
+    enum Conflict {
+        /** Convert values to the known type, dropping the ones which can't be. */
+        COERCE,
+        /** Write values to a field named after their type. */
+        DIVERT,
+    }
+
+    /**
+     * Known types of the fields in one database.
+     */
+    static final class Types {
+        private final AtomicReferenceArray<Type> _types;
+        private final AtomicInteger _unknown;
+        private final AtomicInteger _batches = new AtomicInteger(LEARN_BATCHES);
+
+        private Types(int fields) {
+            this._types = new AtomicReferenceArray<Type>(fields);
+            this._unknown = new AtomicInteger(fields);
+        }
+
+        private boolean isLearning() {
+            return this._unknown.get() > 0 && this._batches.get() > 0;
+        }
+
+        /**
+         * Record the type of the i-th field, unless it's already known.
+         */
+        private void learn(int i, Type type) {
+            if (this._types.compareAndSet(i, null, type)) {
+                this._unknown.decrementAndGet();
+            }
+        }
+    }
+
+    static final int LEARN_BATCHES = 100;
+
+    private final byte[] _measurement;
+    private final String[] _fields;
+    private final byte[][] _keys;
+    private final String[][] _diverted;
+    private final Conflict _conflict;
+    // databases targeted by the output (the ones of other outputs sharing its clients are never added)
+    private final Map<String, Types> _databases = new ConcurrentHashMap<String, Types>();
+    private final LongAdder _conflicts = new LongAdder();
+
+
+    /**
+     * @param fields field keys, sorted
+     */
+    FieldSchema(String measurement, String[] fields, Conflict conflict) {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine(measurement);
+        this._measurement = encoder.series();
+        this._fields = fields;
+        this._keys = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encoder.beginLine(fields[i]);
+            this._keys[i] = encoder.series();
+        }
+        this._conflict = conflict;
+        this._diverted = new String[fields.length][Type.values().length];
+        for (int i = 0; i < fields.length; i++) {
+            for (Type type : Type.values()) {
+                this._diverted[i][type.ordinal()] = fields[i] + "_" + type.name().toLowerCase(Locale.ROOT);
+            }
+        }
+    }
+
+    /**
+     * Number of values whose type conflicted with the known one so far.
+     */
+    long conflicts() {
+        return this._conflicts.sum();
+    }
+
+    /**
+     * Known types of the fields in a database.
+     */
+    Types types(String database) {
+        Types types = this._databases.get(database);
+
+        return types != null ? types : this._databases.computeIfAbsent(database, key -> new Types(this._fields.length));
+    }
+
+    /**
+     * Known type of the i-th field in a database (null if unknown yet).
+     */
+    Type type(String database, int i) {
+        return this.types(database)._types.get(i);
+    }
+
+    /**
+     * Set the types of fields as stored by the server, unless they're already known.
+     *
+     * @param types InfluxDB type names by field key (eg. "float", "integer")
+     */
+    void seed(String database, Map<String, String> types) {
+        Types known = this.types(database);
+
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            int i = Arrays.binarySearch(this._fields, entry.getKey());
+
+            if (i >= 0) {
+                try {
+                    known.learn(i, Type.valueOf(entry.getValue().toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException e) {
+                    // eg. "unsigned", leave it to the server
+                }
+            }
+        }
+    }
+
+    /**
+     * Learn the types of unknown fields from lines acknowledged by the server (other measurements are skipped).
+     *
+     * Batches of databases the output doesn't target are ignored, as are all batches once the
+     * types are known or enough batches were learned from.
+     */
+    void learn(String database, byte[] data, int offset, int length) {
+        Types known = this._databases.get(database);
+
+        if (known == null || !known.isLearning()) {
+            return;
+        }
+
+        int end = offset + length;
+        boolean found = false;
+
+        for (int start = offset; start < end && known._unknown.get() > 0; ) {
+            int eol = start;
+
+            while (eol < end && data[eol] != '\n') {
+                eol++;
+            }
+            if (this.isMeasurement(data, start, eol)) {
+                this.learnLine(known, data, start, eol);
+                found = true;
+            }
+            start = eol + 1;
+        }
+        if (found) {
+            known._batches.decrementAndGet();
+        }
+    }
+
+    /**
+     * Append the value of the i-th field to the current line, according to its known type.
+     *
+     * @return false if the value was skipped
+     */
+    boolean field(LineProtocolEncoder encoder, Types types, int i, Object value) {
+        Type type = type(value);
+
+        if (type == null) {
+            return false;
+        }
+
+        Type known = types._types.get(i);
+
+        if (known == null || known == type) {
+            // written as is until the server tells its type
+            return encoder.field(this._fields[i], value);
+        }
+        this._conflicts.increment();
+        if (this._conflict == Conflict.DIVERT) {
+            return encoder.field(this._diverted[i][type.ordinal()], value);
+        }
+        return encoder.field(this._fields[i], coerce(value, known));
+    }
+
+    private boolean isMeasurement(byte[] data, int start, int end) {
+        int length = this._measurement.length;
+
+        if (end - start <= length || (data[start + length] != ',' && data[start + length] != ' ')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[start + i] != this._measurement[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the field set of a line ({@code series key=value,key=value timestamp}).
+     */
+    private void learnLine(Types known, byte[] data, int start, int end) {
+        int i = skip(data, start + this._measurement.length, end, ' ') + 1;
+
+        while (i < end) {
+            int key = i;
+
+            i = skip(data, i, end, '=');
+
+            int field = this.field(data, key, i);
+
+            i++;
+
+            Type type;
+
+            if (i < end && data[i] == '"') {
+                type = Type.STRING;
+                for (i++; i < end && data[i] != '"'; i++) {
+                    if (data[i] == '\\') {
+                        i++;
+                    }
+                }
+                i++;
+            } else {
+                int value = i;
+
+                while (i < end && data[i] != ',' && data[i] != ' ') {
+                    i++;
+                }
+                if (i == value) {
+                    return;
+                } else if (data[i - 1] == 'i') {
+                    type = Type.INTEGER;
+                } else if (data[i - 1] == 'u') {
+                    // unsigned, leave it to the server
+                    type = null;
+                } else if (data[value] == 't' || data[value] == 'T' || data[value] == 'f' || data[value] == 'F') {
+                    type = Type.BOOLEAN;
+                } else {
+                    type = Type.FLOAT;
+                }
+            }
+
+            if (field >= 0 && type != null) {
+                known.learn(field, type);
+            }
+            if (i >= end || data[i] != ',') {
+                // end of the field set
+                return;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Find the field whose escaped key is the given bytes.
+     *
+     * @return index of the field, -1 if missing
+     */
+    private int field(byte[] data, int start, int end) {
+        for (int i = 0; i < this._keys.length; i++) {
+            byte[] key = this._keys[i];
+
+            if (key.length == end - start) {
+                int k = 0;
+
+                while (k < key.length && key[k] == data[start + k]) {
+                    k++;
+                }
+                if (k == key.length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the next unescaped occurrence of a character.
+     */
+    private static int skip(byte[] data, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\\') {
+                i++;
+            } else if (data[i] == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static Type type(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            return Type.FLOAT;
+        } else if (value instanceof Number) {
+            return Type.INTEGER;
+        } else if (value instanceof Boolean) {
+            return Type.BOOLEAN;
+        } else if (value instanceof String) {
+            return Type.STRING;
+        }
+        return null;
+    }
+
+    /**
+     * Convert a value to a type.
+     *
+     * @return null if it can't be converted
+     */
+    private static Object coerce(Object value, Type type) {
+        switch (type) {
+        case FLOAT:
+            if (value instanceof Number) {
+                return ((Number)value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return ((Boolean)value).booleanValue() ? 1.0 : 0.0;
+            } else {
+                double parsed = NumberParser.PLAIN.parse((String)value);
+
+                return !Double.isNaN(parsed) ? (Object)parsed : null;
+            }
+
+        case INTEGER:
+            if (value instanceof Number) {
+                double number = ((Number)value).doubleValue();
+
+                return Double.isFinite(number) && number < 0x1p63 && number >= -0x1p63 ? (Object)(long)number : null;
+            } else if (value instanceof Boolean) {
+                return ((Boolean)value).booleanValue() ? 1L : 0L;
+            } else {
+                return NumberParser.PLAIN.parseLong((String)value);
+            }
+
+        case STRING:
+            return String.valueOf(value);
+
+        case BOOLEAN:
+            if (value instanceof Number) {
+                return ((Number)value).doubleValue() != 0.0;
+            } else if ("true".equalsIgnoreCase((String)value)) {
+                return true;
+            } else if ("false".equalsIgnoreCase((String)value)) {
+                return false;
+            }
+            return null;
+        }
+        throw new IllegalStateException("Unsupported field type (" + type + ")");
+    }
+}
@@ -0,0 +1,242 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.tmsrv.graylog.influxdb.PointBuilder.FieldMatcher;
+
+
+/**
+ * Filter chain compiled into groups of matchers sharing a field, so that each field is fetched once.
+ *
+ * A sample of the messages is evaluated against every matcher (without short-circuit) to
+ * measure the cost and reject rate of each of them. Periodically, groups (and matchers
+ * within a group) are reordered by expected cost per rejected message, so that cheap and
+ * selective checks run first. Since all matchers must pass, the order doesn't change the
+ * outcome.
+ */
+final class FilterPlan {
+    private static final Logger LOG = LoggerFactory.getLogger(FilterPlan.class);
+
+    private static final int SAMPLE_RATE = 64;
+    private static final int REORDER_SAMPLES = 1024;
+
+    private final String[] _labels;
+    private final AtomicLongArray _fetchNanos;
+    private final AtomicLongArray _groupRejects;
+    private final AtomicLongArray _matchNanos;
+    private final AtomicLongArray _matchRejects;
+    private final AtomicLong _samples = new AtomicLong();
+
+    private volatile Group[] _groups;
+
+
+    /**
+     * @param matchers filters, in configuration order
+     * @param labels description of each filter (eg. its configuration)
+     */
+    FilterPlan(List<FieldMatcher> matchers, List<String> labels) {
+        Map<String, List<Integer>> fields = new LinkedHashMap<String, List<Integer>>();
+
+        for (int i = 0; i < matchers.size(); i++) {
+            fields.computeIfAbsent(matchers.get(i).field(), key -> new ArrayList<Integer>()).add(i);
+        }
+
+        List<Group> groups = new ArrayList<Group>();
+
+        for (Map.Entry<String, List<Integer>> entry : fields.entrySet()) {
+            int[] indices = new int[entry.getValue().size()];
+            FieldMatcher[] items = new FieldMatcher[indices.length];
+
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = entry.getValue().get(i);
+                items[i] = matchers.get(indices[i]);
+            }
+            groups.add(new Group(groups.size(), entry.getKey(), items, indices));
+        }
+        this._labels = labels.toArray(new String[labels.size()]);
+        this._fetchNanos = new AtomicLongArray(groups.size());
+        this._groupRejects = new AtomicLongArray(groups.size());
+        this._matchNanos = new AtomicLongArray(matchers.size());
+        this._matchRejects = new AtomicLongArray(matchers.size());
+        this._groups = groups.toArray(new Group[groups.size()]);
+    }
+
+    /**
+     * Check whether all filters match.
+     */
+    boolean matches(Map<String, Object> fields) {
+        Group[] groups = this._groups;
+
+        if (groups.length == 0) {
+            return true;
+        }
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+            return this.sample(groups, fields);
+        }
+        for (Group group : groups) {
+            Object value = fields.get(group._field);
+
+            for (FieldMatcher matcher : group._matchers) {
+                if (!matcher.match(value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Current evaluation order, with the reject rate and cost of each filter over the last sampling period.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        long samples = this._samples.get() % REORDER_SAMPLES;
+
+        if (samples == 0) {
+            samples = REORDER_SAMPLES;
+        }
+
+        for (Group group : this._groups) {
+            for (int i : group._indices) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(this._labels[i])
+                    .append(" (reject ").append(100 * this._matchRejects.get(i) / samples).append("%")
+                    .append(", ").append(this._matchNanos.get(i) / samples).append("ns)");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Evaluate all filters, measuring their cost and whether they reject the message.
+     */
+    private boolean sample(Group[] groups, Map<String, Object> fields) {
+        boolean result = true;
+
+        for (Group group : groups) {
+            long start = System.nanoTime();
+            Object value = fields.get(group._field);
+            boolean pass = true;
+
+            this._fetchNanos.addAndGet(group._id, System.nanoTime() - start);
+            for (int i = 0; i < group._matchers.length; i++) {
+                long matchStart = System.nanoTime();
+                boolean match = group._matchers[i].match(value);
+
+                this._matchNanos.addAndGet(group._indices[i], System.nanoTime() - matchStart);
+                if (!match) {
+                    this._matchRejects.incrementAndGet(group._indices[i]);
+                    pass = false;
+                }
+            }
+            if (!pass) {
+                this._groupRejects.incrementAndGet(group._id);
+                result = false;
+            }
+        }
+        if (this._samples.incrementAndGet() % REORDER_SAMPLES == 0) {
+            this.reorder();
+        }
+        return result;
+    }
+
+    /**
+     * Sort groups and matchers by cost per rejected message, then start a new sampling period.
+     */
+    private synchronized void reorder() {
+        Group[] groups = new Group[this._groups.length];
+        double[] scores = new double[groups.length];
+
+        for (int i = 0; i < groups.length; i++) {
+            Group group = this._groups[i];
+            long nanos = this._fetchNanos.get(group._id);
+
+            for (int j : group._indices) {
+                nanos += this._matchNanos.get(j);
+            }
+            scores[group._id] = score(nanos, this._groupRejects.get(group._id));
+            groups[i] = group.sorted(this._matchNanos, this._matchRejects);
+        }
+        Arrays.sort(groups, Comparator.comparingDouble(group -> scores[group._id]));
+
+        String previous = this.order();
+
+        this._groups = groups;
+        if (LOG.isDebugEnabled() && !previous.equals(this.order())) {
+            LOG.debug("InfluxDB filter plan reordered: " + this);
+        }
+        for (int i = 0; i < groups.length; i++) {
+            this._fetchNanos.set(i, 0);
+            this._groupRejects.set(i, 0);
+        }
+        for (int i = 0; i < this._labels.length; i++) {
+            this._matchNanos.set(i, 0);
+            this._matchRejects.set(i, 0);
+        }
+    }
+
+    private String order() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Group group : this._groups) {
+            sb.append(Arrays.toString(group._indices));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Expected cost spent per rejected message, filters which never reject go last.
+     */
+    private static double score(long nanos, long rejects) {
+        return (nanos + 1.0) / (rejects + 1e-3);
+    }
+
+    private static final class Group {
+        private final int _id;
+        private final String _field;
+        private final FieldMatcher[] _matchers;
+        private final int[] _indices;
+
+        Group(int id, String field, FieldMatcher[] matchers, int[] indices) {
+            this._id = id;
+            this._field = field;
+            this._matchers = matchers;
+            this._indices = indices;
+        }
+
+        Group sorted(AtomicLongArray nanos, AtomicLongArray rejects) {
+            Integer[] order = new Integer[this._indices.length];
+            double[] scores = new double[order.length];
+
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+                scores[i] = score(nanos.get(this._indices[i]), rejects.get(this._indices[i]));
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> scores[i]));
+
+            FieldMatcher[] matchers = new FieldMatcher[order.length];
+            int[] indices = new int[order.length];
+
+            for (int i = 0; i < order.length; i++) {
+                matchers[i] = this._matchers[order[i]];
+                indices[i] = this._indices[order[i]];
+            }
+            return new Group(this._id, this._field, matchers, indices);
+        }
+    }
+}
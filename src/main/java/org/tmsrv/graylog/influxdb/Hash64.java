@@ -0,0 +1,48 @@
+package org.tmsrv.graylog.influxdb;
+
+
+/**
+ * Fast non-cryptographic 64-bit hash (FNV-1a with a murmur3 finalizer for better avalanche).
+ *
+ * Results are stable across JVMs and nodes, unlike {@code String.hashCode()} based maps.
+ */
+final class Hash64 {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private Hash64() {
+    }
+
+    static long hash(byte[] data, int offset, int length) {
+        long hash = OFFSET_BASIS;
+
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= PRIME;
+        }
+        return mix(hash);
+    }
+
+    static long hash(CharSequence text) {
+        long hash = OFFSET_BASIS;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            hash ^= c & 0xff;
+            hash *= PRIME;
+            hash ^= c >>> 8;
+            hash *= PRIME;
+        }
+        return mix(hash);
+    }
+
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,150 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+
+/**
+ * Write metrics of a client (shard), registered in Graylog's registry under a common prefix.
+ *
+ * A client may be shared by several outputs, so what it writes is counted here rather than
+ * under any of them (see {@link InfluxMetrics} for the metrics of an output).
+ */
+final class InfluxClientMetrics {
+    private final MetricRegistry _registry;
+    private final String _prefix;
+    private final Set<String> _names = ConcurrentHashMap.newKeySet();
+
+    private final Timer _writes;
+    private final Meter _bytesEncoded;
+    private final Meter _bytesSent;
+    private final Timer _compression;
+    private final Meter _packetsSent;
+    private final Meter _packetsDropped;
+    private final Meter _failed;
+    private final Meter _retried;
+    private final Meter _spooled;
+    private final Meter _dropped;
+    private final Meter _rejected;
+
+
+    /**
+     * Register the metrics of a client, a suffix is appended to the name if it's already taken.
+     */
+    InfluxClientMetrics(MetricRegistry registry, String name) {
+        synchronized (registry) {
+            this._registry = registry;
+            this._prefix = InfluxMetrics.prefix(registry, name);
+            this._writes = registry.timer(this.name("writes"));
+        }
+        this._bytesEncoded = registry.meter(this.name("bytes", "encoded"));
+        this._bytesSent = registry.meter(this.name("bytes", "sent"));
+        this._compression = registry.timer(this.name("compression"));
+        this._packetsSent = registry.meter(this.name("packets", "sent"));
+        this._packetsDropped = registry.meter(this.name("packets", "dropped"));
+        this._failed = registry.meter(this.name("batches", "failed"));
+        this._retried = registry.meter(this.name("batches", "retried"));
+        this._spooled = registry.meter(this.name("batches", "spooled"));
+        this._dropped = registry.meter(this.name("batches", "dropped"));
+        this._rejected = registry.meter(this.name("points", "rejected"));
+    }
+
+    /**
+     * Latency of write requests.
+     */
+    Timer writes() {
+        return this._writes;
+    }
+
+    /**
+     * Line protocol bytes written, before compression.
+     */
+    Meter bytesEncoded() {
+        return this._bytesEncoded;
+    }
+
+    /**
+     * Request body bytes sent, after compression.
+     */
+    Meter bytesSent() {
+        return this._bytesSent;
+    }
+
+    /**
+     * CPU time spent compressing request bodies.
+     */
+    Timer compression() {
+        return this._compression;
+    }
+
+    /**
+     * Datagrams sent (UDP transport).
+     */
+    Meter packetsSent() {
+        return this._packetsSent;
+    }
+
+    /**
+     * Datagrams dropped because the socket buffer was full or the line too large (UDP transport).
+     */
+    Meter packetsDropped() {
+        return this._packetsDropped;
+    }
+
+    /**
+     * Batches which failed to be written.
+     */
+    Meter failed() {
+        return this._failed;
+    }
+
+    /**
+     * Writes retried after a failure due to the server.
+     */
+    Meter retried() {
+        return this._retried;
+    }
+
+    /**
+     * Batches appended to the spool.
+     */
+    Meter spooled() {
+        return this._spooled;
+    }
+
+    /**
+     * Batches lost (queue or spool full, or rejected by the server).
+     */
+    Meter dropped() {
+        return this._dropped;
+    }
+
+    /**
+     * Points rejected by InfluxDB, isolated by bisecting their batch.
+     */
+    Meter rejected() {
+        return this._rejected;
+    }
+
+    /**
+     * Unregister all metrics of the client.
+     */
+    void close() {
+        InfluxMetrics.remove(this._registry, this._names);
+    }
+
+    /**
+     * Get the full name of a metric of the client, recorded to be removed on close.
+     */
+    private String name(String... names) {
+        String name = MetricRegistry.name(this._prefix, names);
+
+        this._names.add(name);
+        return name;
+    }
+}
@@ -0,0 +1,158 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.inject.Inject;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Node-wide registry of InfluxDB clients (shards), shared by all outputs writing to the same
+ * url with the same credentials and write settings, whatever their databases.
+ *
+ * Sharing a client shares its connection pool, write pipeline and the databases it already
+ * created. Its writers combine the points of all outputs into larger batches (one per
+ * database and retention policy). Clients are reference-counted: the first output
+ * opens one, the last one to release it closes it. Write metrics of a shared client are
+ * registered under its own name rather than under an output. Outputs writing to the same
+ * server with other settings (eg. another overflow policy) get a client of their own, which
+ * is logged as their points aren't batched together.
+ */
+final class InfluxClientRegistry {
+    /**
+     * Opens the client of a key, when no output uses it yet.
+     */
+    interface Opener {
+        InfluxShard open(InfluxClientMetrics metrics) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxClientRegistry.class);
+
+    private final MetricRegistry _metricRegistry;
+    private final Map<Key, Client> _clients = new HashMap<Key, Client>();
+
+
+    @Inject
+    InfluxClientRegistry(MetricRegistry metricRegistry) {
+        this._metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Get the client of a server with the given settings, opening it if no output uses it yet.
+     */
+    synchronized InfluxShard acquire(String url, String username, String password, InfluxShard.Settings settings, Opener opener) throws IOException {
+        Key key = new Key(url, username, password, settings);
+        Client client = this._clients.get(key);
+
+        if (client == null) {
+            for (Key other : this._clients.keySet()) {
+                if (other.isSameServer(key)) {
+                    LOG.warn("InfluxDB output settings differ from another output writing to the same server, using a separate client (" + url + ", " + settings + " vs " + other._settings + ")");
+                    break;
+                }
+            }
+
+            InfluxClientMetrics metrics = new InfluxClientMetrics(this._metricRegistry, "clients." + InfluxShard.name(url));
+
+            try {
+                client = new Client(opener.open(metrics), metrics);
+            } catch (IOException | RuntimeException e) {
+                metrics.close();
+                throw e;
+            }
+            this._clients.put(key, client);
+            LOG.debug("Opened InfluxDB client (" + url + ")");
+        }
+        client._references++;
+        return client._shard;
+    }
+
+    /**
+     * Release a client, closing it once no output uses it anymore.
+     */
+    void release(InfluxShard shard) throws IOException {
+        Client closing = null;
+
+        synchronized (this) {
+            for (Iterator<Client> i = this._clients.values().iterator(); i.hasNext(); ) {
+                Client client = i.next();
+
+                if (client._shard == shard) {
+                    if (--client._references == 0) {
+                        i.remove();
+                        closing = client;
+                    }
+                    break;
+                }
+            }
+        }
+        if (closing != null) {
+            // closing waits for queued points to be written, not holding up other outputs
+            try {
+                closing._shard.close();
+                LOG.debug("Closed InfluxDB client (" + shard.url() + ")");
+            } finally {
+                closing._metrics.close();
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String _url;
+        private final String _username;
+        private final String _password;
+        private final InfluxShard.Settings _settings;
+
+        Key(String url, String username, String password, InfluxShard.Settings settings) {
+            this._url = url;
+            this._username = username;
+            this._password = password;
+            this._settings = settings;
+        }
+
+        /**
+         * Check whether both keys are for the same server and credentials, whatever their settings.
+         */
+        boolean isSameServer(Key key) {
+            return Objects.equals(this._url, key._url)
+                && Objects.equals(this._username, key._username)
+                && Objects.equals(this._password, key._password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this._url, this._username, this._password, this._settings);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key)other;
+
+            return this.isSameServer(key) && this._settings.equals(key._settings);
+        }
+    }
+
+    private static final class Client {
+        private final InfluxShard _shard;
+        private final InfluxClientMetrics _metrics;
+        private int _references;
+
+        Client(InfluxShard shard, InfluxClientMetrics metrics) {
+            this._shard = shard;
+            this._metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import okio.BufferedSink;
+
+
+/**
+ * Posts encoded line protocol to the {@code /write} endpoint of an InfluxDB server.
+ *
+ * This bypasses influxdb-java's point model so that a batch can be sent straight from
+ * the encoder's buffer as a single request body. Batches above a minimum size can be
+ * gzip-compressed while they're streamed to the connection.
+ */
+final class InfluxHttpWriter implements LineWriter {
+    private static final MediaType MEDIA_TYPE = MediaType.parse("text/plain; charset=utf-8");
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final OkHttpClient _client;
+    private final HttpUrl _url;
+    private final String _authorization;
+    private final int _gzipLevel;
+    private final int _gzipMinSize;
+    private final InfluxClientMetrics _metrics;
+
+    /**
+     * @param gzipLevel deflate level of request bodies (0 to disable compression)
+     * @param gzipMinSize size under which request bodies are sent uncompressed
+     */
+    InfluxHttpWriter(OkHttpClient client, String url, String username, String password, int gzipLevel, int gzipMinSize, InfluxClientMetrics metrics) {
+        HttpUrl base = HttpUrl.parse(url);
+
+        if (base == null) {
+            throw new IllegalArgumentException("Invalid InfluxDB url (" + url + ")");
+        }
+        if (gzipLevel < 0 || gzipLevel > 9) {
+            throw new IllegalArgumentException("Invalid gzip level (" + gzipLevel + ")");
+        }
+        this._client = client;
+        this._url = base.newBuilder().addPathSegment("write").build();
+        this._authorization = username != null && !username.isEmpty() ? Credentials.basic(username, password != null ? password : "") : null;
+        this._gzipLevel = gzipLevel;
+        this._gzipMinSize = gzipMinSize;
+        this._metrics = metrics;
+    }
+
+    /**
+     * Write lines synchronously, failing if InfluxDB doesn't acknowledge them.
+     */
+    @Override
+    public void write(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        HttpUrl.Builder url = this._url.newBuilder()
+            .addQueryParameter("db", target.database())
+            .addQueryParameter("precision", "n")
+            .addQueryParameter("consistency", "one");
+
+        if (target.retentionPolicy() != null) {
+            url.addQueryParameter("rp", target.retentionPolicy());
+        }
+
+        Request.Builder request = new Request.Builder().url(url.build());
+
+        this._metrics.bytesEncoded().mark(length);
+        if (this._gzipLevel > 0 && length >= this._gzipMinSize) {
+            request.header("Content-Encoding", "gzip").post(new GzipBody(data, offset, length, this._gzipLevel, this._metrics));
+        } else {
+            this._metrics.bytesSent().mark(length);
+            request.post(RequestBody.create(MEDIA_TYPE, data, offset, length));
+        }
+        if (this._authorization != null) {
+            request.header("Authorization", this._authorization);
+        }
+        try (Response response = this._client.newCall(request.build()).execute()) {
+            if (!response.isSuccessful()) {
+                ResponseBody body = response.body();
+
+                throw new InfluxWriteException(response.code(), body != null ? body.string() : response.message());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this._client.dispatcher().executorService().shutdown();
+        this._client.connectionPool().evictAll();
+    }
+
+    /**
+     * Request body compressed on the fly into the connection's sink (with chunked transfer, as the size isn't known upfront).
+     */
+    private static final class GzipBody extends RequestBody {
+        private final byte[] _data;
+        private final int _offset;
+        private final int _length;
+        private final int _level;
+        private final InfluxClientMetrics _metrics;
+
+        GzipBody(byte[] data, int offset, int length, int level, InfluxClientMetrics metrics) {
+            this._data = data;
+            this._offset = offset;
+            this._length = length;
+            this._level = level;
+            this._metrics = metrics;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return MEDIA_TYPE;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            long cpu = CPU_TIME ? THREADS.getCurrentThreadCpuTime() : -1;
+            CountingStream counter = new CountingStream(sink.outputStream());
+
+            try (GZIPOutputStream gzip = new GZIPOutputStream(counter, 8192) {
+                {
+                    this.def.setLevel(GzipBody.this._level);
+                }
+            }) {
+                gzip.write(this._data, this._offset, this._length);
+            }
+            if (cpu >= 0) {
+                this._metrics.compression().update(THREADS.getCurrentThreadCpuTime() - cpu, TimeUnit.NANOSECONDS);
+            }
+            this._metrics.bytesSent().mark(counter._count);
+        }
+    }
+
+    /**
+     * Counts the bytes written through it, and leaves the underlying stream open (it belongs to the HTTP client).
+     */
+    private static final class CountingStream extends FilterOutputStream {
+        private long _count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this._count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this._count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+
+/**
+ * Metrics of an output instance, registered in Graylog's registry under a common prefix.
+ *
+ * Message counters are meant to be marked once per batch rather than once per message, to
+ * keep the overhead off the hot path. What is written to servers is counted by the clients
+ * (see {@link InfluxClientMetrics}), which outputs may share.
+ *
+ * Prefixes are built from dotted database and measurement names, so the metrics of another
+ * output may live under this output's prefix: the names registered are tracked, and only
+ * those are removed on close.
+ */
+final class InfluxMetrics {
+    private final MetricRegistry _registry;
+    private final String _prefix;
+    private final Set<String> _names = ConcurrentHashMap.newKeySet();
+
+    private final Meter _written;
+    private final Meter _filtered;
+    private final Meter _empty;
+    private final Meter _late;
+    private final Meter _sampled;
+    private final Meter _coalesced;
+    private final Meter _conflicts;
+    private final Histogram _batchLines;
+    private final Histogram _batchBytes;
+
+
+    /**
+     * Register the metrics of an output, a suffix is appended to the name if it's already taken.
+     */
+    InfluxMetrics(MetricRegistry registry, String name) {
+        String prefix;
+
+        synchronized (registry) {
+            prefix = prefix(registry, name);
+            this._registry = registry;
+            this._prefix = prefix;
+            this._written = registry.meter(this.name("messages", "written"));
+        }
+        this._filtered = registry.meter(this.name("messages", "filtered"));
+        this._empty = registry.meter(this.name("messages", "empty"));
+        this._late = registry.meter(this.name("messages", "late"));
+        this._sampled = registry.meter(this.name("messages", "sampled"));
+        this._coalesced = registry.meter(this.name("points", "coalesced"));
+        this._conflicts = registry.meter(this.name("points", "conflicts"));
+        this._batchLines = registry.histogram(this.name("batch", "lines"));
+        this._batchBytes = registry.histogram(this.name("batch", "bytes"));
+    }
+
+    /**
+     * Messages which yielded a point (or were aggregated).
+     */
+    Meter written() {
+        return this._written;
+    }
+
+    /**
+     * Messages rejected by filters.
+     */
+    Meter filtered() {
+        return this._filtered;
+    }
+
+    /**
+     * Messages matching filters but without any field value.
+     */
+    Meter empty() {
+        return this._empty;
+    }
+
+    /**
+     * Messages arriving after their aggregation window was written.
+     */
+    Meter late() {
+        return this._late;
+    }
+
+    /**
+     * Messages matching filters but dropped by sampling.
+     */
+    Meter sampled() {
+        return this._sampled;
+    }
+
+    /**
+     * Points merged into another point of the same series and timestamp.
+     */
+    Meter coalesced() {
+        return this._coalesced;
+    }
+
+    /**
+     * Fields carried by several merged points, of which only one value was kept.
+     */
+    Meter conflicts() {
+        return this._conflicts;
+    }
+
+    Histogram batchLines() {
+        return this._batchLines;
+    }
+
+    Histogram batchBytes() {
+        return this._batchBytes;
+    }
+
+    /**
+     * Register a gauge under the output's prefix.
+     */
+    <T> void gauge(Gauge<T> gauge, String name, String... names) {
+        this._registry.register(this.name(MetricRegistry.name(name, names)), gauge);
+    }
+
+    /**
+     * Unregister all metrics of the output.
+     */
+    void close() {
+        remove(this._registry, this._names);
+    }
+
+    /**
+     * Get the full name of a metric of the output, recorded to be removed on close.
+     */
+    private String name(String... names) {
+        String name = MetricRegistry.name(this._prefix, names);
+
+        this._names.add(name);
+        return name;
+    }
+
+    /**
+     * Find a free prefix for a group of metrics, to be called while holding the registry's lock.
+     *
+     * A prefix is taken as soon as a metric is named under it, even by a group with a shorter,
+     * overlapping prefix, so that no two groups ever register the same name.
+     */
+    static String prefix(MetricRegistry registry, String name) {
+        String prefix = MetricRegistry.name(InfluxOutput.class, name);
+
+        for (int i = 2; isTaken(registry, prefix); i++) {
+            prefix = MetricRegistry.name(InfluxOutput.class, name + "-" + i);
+        }
+        return prefix;
+    }
+
+    /**
+     * Unregister a group of metrics, by their full names.
+     */
+    static void remove(MetricRegistry registry, Set<String> names) {
+        for (String name : names) {
+            registry.remove(name);
+        }
+        names.clear();
+    }
+
+    private static boolean isTaken(MetricRegistry registry, String prefix) {
+        for (String name : registry.getNames()) {
+            if (name.startsWith(prefix + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,69 +1,118 @@
 package org.tmsrv.graylog.influxdb;
 
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.inject.Inject;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import com.google.inject.assistedinject.Assisted;
 
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
 import org.graylog2.plugin.configuration.fields.ListField;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.outputs.MessageOutput;
 import org.graylog2.plugin.streams.Stream;
 
-import org.influxdb.BatchOptions;
-import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.BatchPoints;
-import org.influxdb.dto.Point;
-import org.influxdb.dto.Query;
-
-import org.joda.time.DateTime;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 public class InfluxOutput implements MessageOutput {
     private static final String CK_INFLUX_URL = "influx_url";
+    private static final String CK_INFLUX_SHARDS = "influx_shards";
     private static final String CK_INFLUX_USERNAME = "influx_user";
     private static final String CK_INFLUX_PASSWORD = "influx_password";
     private static final String CK_INFLUX_DATABASE = "influx_database";
+    private static final String CK_INFLUX_RETENTION_POLICY = "influx_retention_policy";
+    private static final String CK_INFLUX_DATABASE_FIELD = "influx_database_field";
+    private static final String CK_INFLUX_RETENTION_POLICY_FIELD = "influx_retention_policy_field";
+    private static final String CK_INFLUX_TARGET_PATTERN = "influx_target_pattern";
     private static final String CK_INFLUX_MEASUREMENT = "influx_measurement";
     private static final String CK_INFLUX_FILTERS = "influx_filters";
     private static final String CK_INFLUX_TAGS = "influx_tags";
     private static final String CK_INFLUX_FIELDS = "influx_fields";
+    private static final String CK_INFLUX_RULES = "influx_rules";
+    private static final String CK_INFLUX_SPOOL_DIRECTORY = "influx_spool_directory";
+    private static final String CK_INFLUX_SPOOL_SIZE = "influx_spool_size";
+    private static final String CK_INFLUX_AGGREGATE_WINDOW = "influx_aggregate_window";
+    private static final String CK_INFLUX_SAMPLE_RATE = "influx_sample_rate";
+    private static final String CK_INFLUX_SAMPLE_FIELD = "influx_sample_field";
+    private static final String CK_INFLUX_COALESCE = "influx_coalesce";
+    private static final String CK_INFLUX_BUILDER_THREADS = "influx_builder_threads";
+    private static final String CK_INFLUX_PARALLEL_THRESHOLD = "influx_parallel_threshold";
+    private static final String CK_INFLUX_BATCH_SIZE = "influx_batch_size";
+    private static final String CK_INFLUX_BATCH_LINGER = "influx_batch_linger";
+    private static final String CK_INFLUX_QUEUE_SIZE = "influx_queue_size";
+    private static final String CK_INFLUX_WRITER_THREADS = "influx_writer_threads";
+    private static final String CK_INFLUX_OVERFLOW_POLICY = "influx_overflow_policy";
+    private static final String CK_INFLUX_TARGET_LATENCY = "influx_target_latency";
+    private static final String CK_INFLUX_RETRIES = "influx_retries";
+    private static final String CK_INFLUX_RETRY_BACKOFF = "influx_retry_backoff";
+    private static final String CK_INFLUX_GZIP_LEVEL = "influx_gzip_level";
+    private static final String CK_INFLUX_GZIP_MIN_SIZE = "influx_gzip_min_size";
+    private static final String CK_INFLUX_UDP_PAYLOAD_SIZE = "influx_udp_payload_size";
+    private static final String CK_INFLUX_SERIES_CACHE_SIZE = "influx_series_cache_size";
+    private static final String CK_INFLUX_TAG_LIMIT = "influx_tag_limit";
+    private static final String CK_INFLUX_TAG_WINDOW = "influx_tag_window";
+    private static final String CK_INFLUX_TAG_OVERFLOW = "influx_tag_overflow";
+    private static final String CK_INFLUX_TYPE_CONFLICTS = "influx_type_conflicts";
 
     private static final Logger LOG = LoggerFactory.getLogger(InfluxOutput.class);
 
     private Configuration configuration;
-    private List<FieldMatcher> matchers = new ArrayList<FieldMatcher>();
-    private Set<String> tags = new HashSet<String>();
-    private List<FieldMapper> mappers = new ArrayList<FieldMapper>();
+    private PointRouter router;
+    private TargetResolver targets;
+    private InfluxMetrics metrics;
+    private InfluxClientRegistry clients;
+    private LineCoalescer coalescer;
+    private PointBuildPool pool;
 
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
 
-    private InfluxDB influxDB;
+    private InfluxShard[] shards;
+    private ShardRing ring;
+    private ScheduledExecutorService scheduler;
+    private Thread seeder;
+    private BlockingQueue<String> unseeded;
+    private InfluxShard.Listener learner;
 
 
     @Inject
-    public InfluxOutput(@Assisted Configuration configuration) {
+    public InfluxOutput(MetricRegistry metricRegistry, InfluxClientRegistry clients, @Assisted Configuration configuration) {
         this.configuration = configuration;
+        this.clients = clients;
 
         String url = configuration.getString(CK_INFLUX_URL);
         String database = configuration.getString(CK_INFLUX_DATABASE);
@@ -72,19 +121,186 @@ public class InfluxOutput implements MessageOutput {
 
         LOG.debug("Starting InfluxDB output (" + url + "/" + database + ")");
 
-        this.influxDB = InfluxDBFactory.connect(url, username, password);
-        this.influxDB.query(new Query("CREATE DATABASE " + database));
-        this.influxDB.setDatabase(database);
-        this.influxDB.enableBatch(BatchOptions.DEFAULTS);
+        String measurement = configuration.getString(CK_INFLUX_MEASUREMENT);
+        String tagOverflow = configuration.getString(CK_INFLUX_TAG_OVERFLOW);
+        String typeConflicts = configuration.getString(CK_INFLUX_TYPE_CONFLICTS);
+        long aggregateWindow = configuration.getInt(CK_INFLUX_AGGREGATE_WINDOW, 0) * 1000L;
+        // aggregated fields have fixed types
+        FieldSchema.Conflict typeConflict = aggregateWindow > 0 || typeConflicts == null || typeConflicts.isEmpty() || typeConflicts.equals("none") ? null
+            : FieldSchema.Conflict.valueOf(typeConflicts.toUpperCase(Locale.ROOT));
+
+        if (typeConflict != null) {
+            // field types of each targeted database are read from the servers in background
+            this.unseeded = new LinkedBlockingQueue<String>();
+            this.unseeded.add(database);
+        }
+
+        // the database and retention policy of each message may be picked from its fields
+        this.targets = new TargetResolver(
+            optional(configuration, CK_INFLUX_DATABASE_FIELD),
+            optional(configuration, CK_INFLUX_RETENTION_POLICY_FIELD),
+            targetPattern(configuration),
+            new WriteTarget(database, optional(configuration, CK_INFLUX_RETENTION_POLICY)),
+            this.unseeded != null ? this.unseeded::add : null
+        );
+
+        // the main measurement and the additional rules are evaluated together for each message
+        this.router = new PointRouter(
+            PointRouter.rules(
+                measurement,
+                configuration.getList(CK_INFLUX_FILTERS),
+                configuration.getList(CK_INFLUX_TAGS),
+                configuration.getList(CK_INFLUX_FIELDS),
+                list(configuration, CK_INFLUX_RULES)
+            ),
+            configuration.getInt(CK_INFLUX_SERIES_CACHE_SIZE, 10000),
+            configuration.getInt(CK_INFLUX_TAG_LIMIT, 0),
+            configuration.getInt(CK_INFLUX_TAG_WINDOW, 3600) * 1000L,
+            tagOverflow == null || tagOverflow.isEmpty() ? CardinalityGuard.Overflow.BUCKET : CardinalityGuard.Overflow.valueOf(tagOverflow.toUpperCase(Locale.ROOT)),
+            aggregateWindow,
+            sampler(configuration),
+            typeConflict
+        );
+        this.metrics = new InfluxMetrics(metricRegistry, database + "." + measurement);
+
+        String coalesce = configuration.getString(CK_INFLUX_COALESCE);
+
+        if (coalesce != null && !coalesce.isEmpty() && !coalesce.equals("none")) {
+            try {
+                this.coalescer = new LineCoalescer(LineCoalescer.Conflict.valueOf(coalesce.toUpperCase(Locale.ROOT)), this.metrics);
+            } catch (IllegalArgumentException e) {
+                this.metrics.close();
+                throw e;
+            }
+        }
+
+        for (PointBuilder builder : this.router.builders()) {
+            SeriesCache series = builder.series();
+
+            if (series != null) {
+                this.metrics.gauge((Gauge<Integer>)series::size, "series", builder.measurement(), "size");
+                this.metrics.gauge((Gauge<Long>)series::hits, "series", builder.measurement(), "hits");
+                this.metrics.gauge((Gauge<Long>)series::misses, "series", builder.measurement(), "misses");
+                this.metrics.gauge((Gauge<Long>)series::evictions, "series", builder.measurement(), "evictions");
+                this.metrics.gauge((Gauge<Double>)() -> {
+                    long hits = series.hits();
+                    long total = hits + series.misses();
+
+                    return total > 0 ? (double)hits / total : 0.0;
+                }, "series", builder.measurement(), "hit-ratio");
+            }
+
+            this.metrics.gauge((Gauge<Long>)builder::invalid, "fields", builder.measurement(), "invalid");
+            if (builder.schema() != null) {
+                this.metrics.gauge((Gauge<Long>)builder.schema()::conflicts, "fields", builder.measurement(), "conflicts");
+            }
+
+            CardinalityGuard guard = builder.guard();
+
+            if (guard != null) {
+                for (int i = 0; i < guard.tags().length; i++) {
+                    int tag = i;
+
+                    this.metrics.gauge((Gauge<Long>)() -> guard.cardinality(tag), "tags", builder.measurement(), guard.tags()[i], "cardinality");
+                }
+                this.metrics.gauge((Gauge<Long>)guard::overflowed, "tags", builder.measurement(), "overflowed");
+            }
+        }
+
+        List<String> urls = new ArrayList<String>();
+
+        urls.add(url.trim());
+        for (String item : list(configuration, CK_INFLUX_SHARDS)) {
+            if (!item.trim().isEmpty() && !urls.contains(item.trim())) {
+                urls.add(item.trim());
+            }
+        }
+
+        String spoolDirectory = configuration.getString(CK_INFLUX_SPOOL_DIRECTORY);
+        long spoolSize = configuration.getInt(CK_INFLUX_SPOOL_SIZE, 1024) * 1024L * 1024L;
+        int gzipLevel = configuration.getInt(CK_INFLUX_GZIP_LEVEL, 0);
+        int gzipMinSize = configuration.getInt(CK_INFLUX_GZIP_MIN_SIZE, 1024);
+        int udpPayloadSize = configuration.getInt(CK_INFLUX_UDP_PAYLOAD_SIZE, 1400);
+        String policy = configuration.getString(CK_INFLUX_OVERFLOW_POLICY);
+        WritePipeline.Settings pipeline;
+
+        try {
+            pipeline = new WritePipeline.Settings(
+                configuration.getInt(CK_INFLUX_QUEUE_SIZE, 10000),
+                configuration.getInt(CK_INFLUX_BATCH_SIZE, 1000),
+                configuration.getInt(CK_INFLUX_BATCH_LINGER, 1000),
+                configuration.getInt(CK_INFLUX_WRITER_THREADS, 1),
+                policy == null || policy.isEmpty() ? WritePipeline.OverflowPolicy.DROP_OLDEST : WritePipeline.OverflowPolicy.valueOf(policy.toUpperCase(Locale.ROOT)),
+                configuration.getInt(CK_INFLUX_TARGET_LATENCY, 1000),
+                configuration.getInt(CK_INFLUX_RETRIES, 3),
+                configuration.getInt(CK_INFLUX_RETRY_BACKOFF, 100)
+            );
+        } catch (IllegalArgumentException e) {
+            this.metrics.close();
+            throw e;
+        }
+
+        // with several servers, series are spread by consistent hashing and each server is written by its own pipeline,
+        // shared with the other outputs writing to the same server with the same settings (whatever their databases)
+        this.shards = new InfluxShard[urls.size()];
+        try {
+            for (int i = 0; i < this.shards.length; i++) {
+                String shardUrl = urls.get(i);
+                Path spool = null;
+
+                if (spoolDirectory != null && !spoolDirectory.trim().isEmpty()) {
+                    spool = Paths.get(spoolDirectory.trim());
+                    if (this.shards.length > 1) {
+                        spool = spool.resolve(InfluxShard.name(shardUrl));
+                    }
+                }
+
+                InfluxShard.Settings settings = new InfluxShard.Settings(gzipLevel, gzipMinSize, udpPayloadSize, spool, spoolSize, pipeline);
 
-        for (String item : configuration.getList(CK_INFLUX_FILTERS)) {
-            this.matchers.add(this.buildMatcher(item));
+                this.shards[i] = this.clients.acquire(shardUrl, username, password, settings, metrics -> new InfluxShard(shardUrl, username, password, settings, metrics));
+            }
+        } catch (IOException e) {
+            this.closeShards();
+            this.metrics.close();
+            throw new IllegalStateException("Shard error (" + e + ")", e);
+        } catch (IllegalArgumentException e) {
+            this.closeShards();
+            this.metrics.close();
+            throw e;
         }
-        for (String item : configuration.getList(CK_INFLUX_TAGS)) {
-            this.tags.add(item.trim());
+        this.metrics.gauge((Gauge<String>)() -> this.health().name(), "health");
+        for (InfluxShard shard : this.shards) {
+            this.metrics.gauge((Gauge<String>)() -> shard.health().name(), "shards", shard.name(), "health");
+            this.metrics.gauge((Gauge<Integer>)shard::queueSize, "shards", shard.name(), "queue");
+            this.metrics.gauge((Gauge<Integer>)shard::batchSize, "shards", shard.name(), "batch-size");
+            this.metrics.gauge((Gauge<Long>)shard::spoolSize, "shards", shard.name(), "spool");
         }
-        for (String item : configuration.getList(CK_INFLUX_FIELDS)) {
-            this.mappers.add(this.buildMapper(item));
+        if (this.shards.length > 1) {
+            this.ring = new ShardRing(urls.toArray(new String[urls.size()]));
+        }
+        if (typeConflict != null) {
+            // field types are learned from the lines servers acknowledged
+            this.learner = this::learn;
+            for (InfluxShard shard : this.shards) {
+                shard.listen(this.learner);
+            }
+        }
+
+        int builderThreads = configuration.getInt(CK_INFLUX_BUILDER_THREADS, 1);
+
+        if (builderThreads > 1 && !this.router.isAggregating()) {
+            this.pool = new PointBuildPool(this.router, builderThreads, configuration.getInt(CK_INFLUX_PARALLEL_THRESHOLD, 1000));
+        }
+        if (this.router.isAggregating()) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("influxdb-aggregate-%d").setDaemon(true).build()
+            );
+            this.scheduler.scheduleWithFixedDelay(() -> this.flushAggregates(false), 1, 1, TimeUnit.SECONDS);
+        } else if (typeConflict != null) {
+            // field types are read once servers are reached, without holding up the output
+            this.seeder = new Thread(this::seedSchemas, "influxdb-schema-" + measurement);
+            this.seeder.setDaemon(true);
+            this.seeder.start();
         }
         this.isRunning.set(true);
 
@@ -103,31 +319,58 @@ public class InfluxOutput implements MessageOutput {
             return;
         }
 
-        Point pt = this.buildPoint(message);
+        if (this.router.isAggregating()) {
+            this.mark(this.router.aggregatePoints(message));
+            return;
+        }
+
+        LineProtocolEncoder encoder = LineProtocolEncoder.local();
+        WriteTarget target = this.targets.resolve(message);
+        PointBuilder.Outcome outcome = this.router.buildPoints(encoder, message, target.database());
 
-        if (pt != null) {
-            this.influxDB.write(BatchPoints.builder().point(pt).build());
+        this.mark(outcome);
+        if (outcome == PointBuilder.Outcome.WRITTEN) {
+            this.send(target, encoder);
         }
     }
 
     @Override
     public void write(List<Message> messages) throws Exception {
         if (!this.isRunning.get()) {
-        return;
+            return;
         }
 
-        List<Point> pts = new ArrayList<Point>(messages.size());
-
-        for (Message message : messages) {
-            Point pt = this.buildPoint(message);
+        // outcomes are counted locally and reported once per batch
+        int[] outcomes = new int[PointBuilder.Outcome.values().length];
 
-            if (pt != null) {
-                pts.add(pt);
+        if (this.router.isAggregating()) {
+            for (Message message : messages) {
+                outcomes[this.router.aggregatePoints(message).ordinal()]++;
             }
+            this.mark(outcomes);
+            return;
         }
-        if (pts.size() > 0) {
-            this.influxDB.write(BatchPoints.builder().points(pts).build());
+
+        // points of each target are built and queued as a batch of their own
+        for (Map.Entry<WriteTarget, List<Message>> group : this.targets.group(messages).entrySet()) {
+            LineProtocolEncoder encoder = LineProtocolEncoder.local();
+            String database = group.getKey().database();
+
+            if (this.pool != null) {
+                this.pool.buildPoints(encoder, group.getValue(), database, outcomes);
+            } else {
+                for (Message message : group.getValue()) {
+                    outcomes[this.router.buildPoints(encoder, message, database).ordinal()]++;
+                }
+            }
+            if (this.coalescer != null) {
+                encoder = this.coalescer.coalesce(encoder);
+            }
+            if (encoder.lines() > 0) {
+                this.send(group.getKey(), encoder);
+            }
         }
+        this.mark(outcomes);
     }
 
     @Override
@@ -135,288 +378,271 @@ public class InfluxOutput implements MessageOutput {
         String url = configuration.getString(CK_INFLUX_URL);
         String database = configuration.getString(CK_INFLUX_DATABASE);
 
-        LOG.debug("Stopping InfluxDB output (" + url + "/" + database + ")");
+        if (LOG.isDebugEnabled()) {
+            for (PointBuilder builder : this.router.builders()) {
+                LOG.debug("Stopping InfluxDB output (" + url + "/" + database + ", " + builder.measurement() + " filters: " + builder.filters() + ")");
+            }
+        }
 
         this.isRunning.set(false);
-        this.influxDB.close();
+        if (this.seeder != null) {
+            this.seeder.interrupt();
+        }
+        if (this.scheduler != null) {
+            this.scheduler.shutdown();
+            try {
+                this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.flushAggregates(true);
+        }
+        if (this.pool != null) {
+            this.pool.close();
+        }
+        this.closeShards();
+        this.metrics.close();
 
         LOG.info("InfluxDB output stopped (" + url + "/" + database + ")");
     }
 
-    private FieldMatcher buildMatcher(String source) {
-        source = source.trim();
-        if (source.length() == 0) {
-            throw new IllegalArgumentException("Matcher source is empty");
-        }
-        if (source.indexOf("!=") > 0) {
-            String key = source.substring(0, source.indexOf("!=")).trim();
-            String value = source.substring(source.indexOf("!=") + 2).trim();
-
-            return new StringFieldMatcher(key, true, value, true);
+    /**
+     * Seed the field types of each measurement from the servers, for each database as it's first targeted.
+     */
+    private void seedSchemas() {
+        try {
+            while (true) {
+                String database = this.unseeded.take();
+
+                for (PointBuilder builder : this.router.builders()) {
+                    for (InfluxShard shard : this.shards) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        try {
+                            builder.schema().seed(database, shard.fieldTypes(database, builder.measurement()));
+                        } catch (IOException e) {
+                            LOG.warn("InfluxDB output failed to read field types (" + shard.url() + "/" + database + ", " + builder.measurement() + ", " + e.getMessage() + ")");
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopping
         }
-        if (source.indexOf('=') > 0) {
-            String key = source.substring(0, source.indexOf('=')).trim();
-            String value = source.substring(source.indexOf('=') + 1).trim();
+    }
 
-            return new StringFieldMatcher(key, false, value, true);
+    /**
+     * Learn field types from lines acknowledged by a server.
+     */
+    private void learn(WriteTarget target, byte[] data, int offset, int length) {
+        for (PointBuilder builder : this.router.builders()) {
+            builder.schema().learn(target.database(), data, offset, length);
         }
-        if (source.indexOf("!~") > 0) {
-            String key = source.substring(0, source.indexOf("!~")).trim();
-            String value = source.substring(source.indexOf("!~") + 2).trim();
+    }
 
-            return new RegexFieldMatcher(key, true, value, 0);
-        }
-        if (source.indexOf('~') > 0) {
-            String key = source.substring(0, source.indexOf('~')).trim();
-            String value = source.substring(source.indexOf('~') + 1).trim();
+    /**
+     * Health of each InfluxDB server, by url.
+     */
+    Map<String, InfluxShard.Health> shardHealth() {
+        Map<String, InfluxShard.Health> health = new TreeMap<String, InfluxShard.Health>();
 
-            return new RegexFieldMatcher(key, false, value, 0);
-        }
-        if (source.startsWith("!")) {
-            return new ConstantFieldMatcher(source.substring(1), true);
+        for (InfluxShard shard : this.shards) {
+            health.put(shard.url(), shard.health());
         }
-        return new ConstantFieldMatcher(source, false);
+        return health;
     }
 
-    private FieldMapper buildMapper(String source) {
-        source = source.trim();
-        if (source.length() == 0) {
-            throw new IllegalArgumentException("Mapper source is empty");
-        }
+    /**
+     * Health of the output: degraded if any server is, otherwise connecting while any server wasn't reached yet.
+     */
+    InfluxShard.Health health() {
+        InfluxShard.Health health = InfluxShard.Health.HEALTHY;
 
-        FieldType type = FieldType.DOUBLE;
+        for (InfluxShard shard : this.shards) {
+            InfluxShard.Health state = shard.health();
 
-        if (source.startsWith("B:")) {
-            type = FieldType.BOOLEAN;
-            source = source.substring(2);
-        } else if (source.startsWith("I:") || source.startsWith("L:")) {
-            type = FieldType.LONG;
-            source = source.substring(2);
-        } else if (source.startsWith("F:") || source.startsWith("D:")) {
-            type = FieldType.DOUBLE;
-            source = source.substring(2);
-        } else if (source.startsWith("S:") || source.startsWith("T:")) {
-            type = FieldType.STRING;
-            source = source.substring(2);
-        }
-        if (source.indexOf('=') > 0 || source.indexOf('~') > 0) {
-            try {
-                return new BooleanFieldMapper(type, this.buildMatcher(source));
-            } catch (IllegalArgumentException e) {
-                throw new IllegalArgumentException("Boolean mapper error (" + e + ")", e);
+            if (state == InfluxShard.Health.DEGRADED) {
+                return state;
+            } else if (state == InfluxShard.Health.CONNECTING) {
+                health = state;
             }
         }
-        return new IdentityFieldMapper(type, source);
+        return health;
     }
 
-    private Point buildPoint(Message message) {
-        Map<String, Object> fields = message.getFields();
-
-        for (FieldMatcher matcher : this.matchers) {
-            String key = matcher.field();
-
-            if (!matcher.match(fields.get(key))) {
-                return null;
-            }
+    /**
+     * Queue encoded lines for InfluxDB, split by series when there are several servers.
+     */
+    private void send(WriteTarget target, LineProtocolEncoder encoder) throws InterruptedException {
+        this.metrics.batchLines().update(encoder.lines());
+        this.metrics.batchBytes().update(encoder.size());
+        if (this.ring == null) {
+            this.shards[0].submit(target, Arrays.copyOf(encoder.buffer(), encoder.size()), encoder.lines());
+            return;
         }
 
-        Map<String, String> tags = new HashMap<String, String>();
+        byte[] buffer = encoder.buffer();
+        int[] owners = new int[encoder.lines()];
+        int[] sizes = new int[this.shards.length];
+        int[] lines = new int[this.shards.length];
 
-        for (String key : this.tags) {
-            Object value = fields.get(key);
+        for (int i = 0; i < owners.length; i++) {
+            int start = encoder.lineStart(i);
 
-            if (value != null) {
-                tags.put(key, String.valueOf(value));
-            }
+            owners[i] = this.ring.shard(buffer, start, encoder.seriesEnd(i) - start);
+            sizes[owners[i]] += encoder.lineEnd(i) - start;
+            lines[owners[i]]++;
         }
+        for (int shard = 0; shard < this.shards.length; shard++) {
+            if (sizes[shard] == 0) {
+                continue;
+            }
 
-        Map<String, Object> values = new HashMap<String, Object>();
+            byte[] data = new byte[sizes[shard]];
+            int offset = 0;
 
-        for (FieldMapper mapper : this.mappers) {
-            String key = mapper.field();
-            Object value = mapper.map(fields.get(key));
+            for (int i = 0; i < owners.length; i++) {
+                if (owners[i] == shard) {
+                    int start = encoder.lineStart(i);
+                    int length = encoder.lineEnd(i) - start;
 
-            if (value != null) {
-                values.put(key, value);
+                    System.arraycopy(buffer, start, data, offset, length);
+                    offset += length;
+                }
             }
+            this.shards[shard].submit(target, data, lines[shard]);
         }
-        if (values.isEmpty()) {
-          LOG.debug("InfluxDB output matched but no value extracted (" + message + ")");
-          return null;
-        }
-        return Point.measurement(configuration.getString(CK_INFLUX_MEASUREMENT))
-            .time(message.getTimestamp().getMillis(), TimeUnit.MILLISECONDS)
-            .tag("source", message.getSource())
-            .tag(tags)
-            .fields(values)
-            .build();
-    }
-
-    private static interface FieldMatcher {
-        String field();
-        boolean match(Object value);
     }
 
-    private static abstract class AbstractFieldMatcher implements FieldMatcher {
-        private final String _field;
-        private final boolean _negate;
-
-        AbstractFieldMatcher(String field, boolean negate) {
-            this._field = field;
-            this._negate = negate;
-        }
-
-        public final String field() {
-            return this._field;
-        }
-
-        public final boolean match(Object value) {
-            return this._negate ? !this.matchImpl(value) : this.matchImpl(value);
+    private void mark(PointBuilder.Outcome outcome) {
+        switch (outcome) {
+            case WRITTEN:
+                this.metrics.written().mark();
+                break;
+            case FILTERED:
+                this.metrics.filtered().mark();
+                break;
+            case EMPTY:
+                this.metrics.empty().mark();
+                break;
+            case LATE:
+                this.metrics.late().mark();
+                break;
+            case SAMPLED:
+                this.metrics.sampled().mark();
+                break;
         }
-
-        abstract boolean matchImpl(Object value);
     }
 
-    private static class ConstantFieldMatcher extends AbstractFieldMatcher {
-        ConstantFieldMatcher(String field, boolean negate) {
-            super(field, negate);
-        }
-
-        boolean matchImpl(Object value) {
-            return value != null;
-        }
+    private void mark(int[] outcomes) {
+        mark(this.metrics.written(), outcomes[PointBuilder.Outcome.WRITTEN.ordinal()]);
+        mark(this.metrics.filtered(), outcomes[PointBuilder.Outcome.FILTERED.ordinal()]);
+        mark(this.metrics.empty(), outcomes[PointBuilder.Outcome.EMPTY.ordinal()]);
+        mark(this.metrics.late(), outcomes[PointBuilder.Outcome.LATE.ordinal()]);
+        mark(this.metrics.sampled(), outcomes[PointBuilder.Outcome.SAMPLED.ordinal()]);
     }
 
-    private static class StringFieldMatcher extends AbstractFieldMatcher {
-        private final String _value;
-        private final boolean _caseSensitive;
-
-        StringFieldMatcher(String field, boolean negate, String value, boolean caseSensitive) {
-            super(field, negate);
-            this._value = value;
-            this._caseSensitive = caseSensitive;
+    private static void mark(Meter meter, int count) {
+        if (count > 0) {
+            meter.mark(count);
         }
+    }
 
-        boolean matchImpl(Object value) {
-            if (value == null) {
-                return false;
+    private void closeShards() {
+        for (InfluxShard shard : this.shards) {
+            if (shard == null) {
+                continue;
+            }
+            if (this.learner != null) {
+                shard.unlisten(this.learner);
+            }
+            try {
+                this.clients.release(shard);
+            } catch (IOException e) {
+                LOG.warn("Failed to close InfluxDB shard (" + shard.url() + ", " + e + ")");
             }
-            return this._caseSensitive ? this._value.equals(String.valueOf(value)) : this._value.equalsIgnoreCase(String.valueOf(value));
         }
     }
 
-    private static class RegexFieldMatcher extends AbstractFieldMatcher {
-        private final Pattern _regex;
-
-        RegexFieldMatcher(String field, boolean negate, String regex, int flags) {
-            super(field, negate);
-            this._regex = Pattern.compile(regex, flags);
-        }
+    /**
+     * Write the aggregation windows which are closed (or all of them when stopping).
+     */
+    private void flushAggregates(boolean force) {
+        LineProtocolEncoder encoder = LineProtocolEncoder.local();
 
-        boolean matchImpl(Object value) {
-            if (value == null) {
-                return false;
+        try {
+            if (this.router.drain(System.currentTimeMillis(), force, encoder) > 0) {
+                this.send(this.targets.fallback(), encoder);
             }
-            return this._regex.matcher(String.valueOf(value)).matches();
+        } catch (Exception e) {
+            LOG.error("InfluxDB output failed to write aggregates", e);
         }
     }
 
-    private static enum FieldType {
-        BOOLEAN,
-        LONG,
-        DOUBLE,
-        STRING,
-    }
+    /**
+     * Build the sampler of the output.
+     *
+     * @return null if all messages are kept
+     */
+    private static PointSampler sampler(Configuration configuration) {
+        String rate = configuration.getString(CK_INFLUX_SAMPLE_RATE);
 
-    private static interface FieldMapper {
-        FieldType type();
-        String field();
-        Object map(Object value);
-    }
+        if (rate == null || rate.trim().isEmpty()) {
+            return null;
+        }
 
-    private static abstract class AbstractFieldMapper implements FieldMapper {
-        private final FieldType _type;
-        private final String _field;
+        double value;
 
-        AbstractFieldMapper(FieldType type, String field) {
-            this._type = type;
-            this._field = field;
+        try {
+            value = Double.parseDouble(rate.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Sample rate error (" + e + ")", e);
         }
-
-        public final FieldType type() {
-            return this._type;
+        if (value == 1.0) {
+            return null;
         }
 
-        public final String field() {
-            return this._field;
-        }
+        String field = configuration.getString(CK_INFLUX_SAMPLE_FIELD);
 
-        public final Object map(Object value) {
-            value = this.mapImpl(value);
-            switch (this._type) {
-            case BOOLEAN:
-                if (value instanceof Boolean) {
-                    return ((Boolean)value).booleanValue();
-                } else if (value instanceof Number) {
-                    return ((Number)value).doubleValue() != 0.0;
-                } else if (value != null) {
-                    return Boolean.parseBoolean(String.valueOf(value));
-                }
-                return null;
-
-            case LONG:
-                if (value instanceof Boolean) {
-                    return ((Boolean)value).booleanValue() ? 1L : 0L;
-                } else if (value instanceof Number) {
-                    return ((Number)value).longValue();
-                } else if (value != null) {
-                    return Long.parseLong(String.valueOf(value));
-                }
-                return null;
-
-            case DOUBLE:
-                if (value instanceof Boolean) {
-                    return ((Boolean)value).booleanValue() ? 1.0 : 0.0;
-                } else if (value instanceof Number) {
-                    return ((Number)value).doubleValue();
-                } else if (value != null) {
-                    return Double.parseDouble(String.valueOf(value));
-                }
-                return null;
+        return new PointSampler(value, field == null || field.trim().isEmpty() ? Message.FIELD_ID : field.trim());
+    }
 
-            case STRING:
-                if (value != null) {
-                    return String.valueOf(value);
-                }
-                return null;
+    /**
+     * Get the pattern of target names accepted from messages, null if none is.
+     */
+    private static Pattern targetPattern(Configuration configuration) {
+        String pattern = optional(configuration, CK_INFLUX_TARGET_PATTERN);
+
+        if (pattern == null) {
+            if (optional(configuration, CK_INFLUX_DATABASE_FIELD) != null || optional(configuration, CK_INFLUX_RETENTION_POLICY_FIELD) != null) {
+                LOG.warn("InfluxDB output has no target pattern, all messages are written to the configured database and retention policy");
             }
-            throw new IllegalStateException("Unsupported field type (" + this._type + ")");
+            return null;
+        }
+        try {
+            return Pattern.compile(pattern);
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Target pattern error (" + e + ")", e);
         }
-
-        abstract Object mapImpl(Object value);
     }
 
-    private static class IdentityFieldMapper extends AbstractFieldMapper {
-        IdentityFieldMapper(FieldType type, String field) {
-            super(type, field);
-        }
+    /**
+     * Get a text parameter, null if it's not set or blank.
+     */
+    private static String optional(Configuration configuration, String key) {
+        String value = configuration.getString(key);
 
-        Object mapImpl(Object value) {
-            return value;
-        }
+        return value != null && !value.trim().isEmpty() ? value.trim() : null;
     }
 
-    private static class BooleanFieldMapper extends AbstractFieldMapper {
-        private final FieldMatcher _matcher;
-
-        BooleanFieldMapper(FieldType type, FieldMatcher matcher) {
-            super(type, matcher.field());
-            this._matcher = matcher;
-        }
+    /**
+     * Get a list parameter, empty if it's not set (eg. added after the output was created).
+     */
+    private static List<String> list(Configuration configuration, String key) {
+        List<String> list = configuration.getList(key);
 
-        Object mapImpl(Object value) {
-            return this._matcher.match(value) ? 1 : 0;
-        }
+        return list != null ? list : Collections.<String>emptyList();
     }
 
     public interface Factory extends MessageOutput.Factory<InfluxOutput> {
@@ -431,6 +657,38 @@ public class InfluxOutput implements MessageOutput {
     }
 
     public static class Config extends MessageOutput.Config {
+        private static final Map<String, String> OVERFLOW_POLICIES = new LinkedHashMap<String, String>();
+
+        static {
+            OVERFLOW_POLICIES.put("block", "Block");
+            OVERFLOW_POLICIES.put("drop_oldest", "Drop oldest");
+            OVERFLOW_POLICIES.put("drop_newest", "Drop newest");
+            OVERFLOW_POLICIES.put("spill", "Spill to spool");
+        }
+
+        private static final Map<String, String> COALESCE_MODES = new LinkedHashMap<String, String>();
+
+        static {
+            COALESCE_MODES.put("none", "Disabled");
+            COALESCE_MODES.put("last", "Merge, last value wins");
+            COALESCE_MODES.put("first", "Merge, first value wins");
+        }
+
+        private static final Map<String, String> TAG_OVERFLOWS = new LinkedHashMap<String, String>();
+
+        static {
+            TAG_OVERFLOWS.put("bucket", "Replace by _overflow");
+            TAG_OVERFLOWS.put("drop", "Drop tag");
+        }
+
+        private static final Map<String, String> TYPE_CONFLICTS = new LinkedHashMap<String, String>();
+
+        static {
+            TYPE_CONFLICTS.put("none", "Disabled");
+            TYPE_CONFLICTS.put("coerce", "Convert to known type");
+            TYPE_CONFLICTS.put("divert", "Write to field suffixed by type");
+        }
+
         @Override
         public ConfigurationRequest getRequestedConfiguration() {
             final ConfigurationRequest configurationRequest = new ConfigurationRequest();
@@ -440,10 +698,21 @@ public class InfluxOutput implements MessageOutput {
                     CK_INFLUX_URL,
                     "Server URL",
                     "http://localhost:8086",
-                    "URL of your InfluxDB instance",
+                    "URL of your InfluxDB instance (or udp://host:port to send to its UDP listener). Outputs writing to the same instance with identical credentials and write settings (compression, queue, batching, retries, spool) share its connection, queue and spool.",
                     ConfigurationField.Optional.NOT_OPTIONAL
                 )
             );
+            configurationRequest.addField(
+                new ListField(
+                    CK_INFLUX_SHARDS,
+                    "Additional shards",
+                    Collections.emptyList(),
+                    Collections.emptyMap(),
+                    "URLs of additional InfluxDB instances. Series are spread over all instances by consistent hashing of measurement and tags.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    ListField.Attribute.ALLOW_CREATE
+                )
+            );
             configurationRequest.addField(
                 new TextField(
                     CK_INFLUX_USERNAME,
@@ -472,6 +741,42 @@ public class InfluxOutput implements MessageOutput {
                     ConfigurationField.Optional.NOT_OPTIONAL
                 )
             );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_RETENTION_POLICY,
+                    "Retention policy",
+                    "",
+                    "Retention policy to write to (empty for the default one of the database).",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_DATABASE_FIELD,
+                    "Database field",
+                    "",
+                    "Source field naming the database of each message (empty or missing field for the database above). Only names matching the target pattern are used, databases are created when first written to. Aggregates always go to the database above.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_RETENTION_POLICY_FIELD,
+                    "Retention policy field",
+                    "",
+                    "Source field naming the retention policy of each message (empty or missing field for the retention policy above). Only names matching the target pattern are used. Aggregates always go to the retention policy above.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_TARGET_PATTERN,
+                    "Target pattern",
+                    "",
+                    "Regular expression which database and retention policy names from the fields above must match entirely (eg. tenant_[a-z0-9]+), messages naming another target are written to the ones above. No name is accepted if empty.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
             configurationRequest.addField(
                 new TextField(
                     CK_INFLUX_MEASUREMENT,
@@ -514,6 +819,254 @@ public class InfluxOutput implements MessageOutput {
                     ListField.Attribute.ALLOW_CREATE
                 )
             );
+            configurationRequest.addField(
+                new ListField(
+                    CK_INFLUX_RULES,
+                    "Additional measurements",
+                    Collections.emptyList(),
+                    Collections.emptyMap(),
+                    "Filters, tags and fields of additional measurements written from the same messages, one per item (eg. http filter method=GET, http tag host, http field duration).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    ListField.Attribute.ALLOW_CREATE
+                )
+            );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_SPOOL_DIRECTORY,
+                    "Spool directory",
+                    "",
+                    "Directory where batches are spooled while InfluxDB is unavailable, replayed once it's back (disabled if empty). Shared by outputs writing to the same instance with identical settings, otherwise must be unique per output.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_SPOOL_SIZE,
+                    "Spool size",
+                    1024,
+                    "Maximum size of the spool on disk (MB), batches are dropped when it's full.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_AGGREGATE_WINDOW,
+                    "Aggregation window",
+                    0,
+                    "Roll up fields per series into windows of this length (seconds) and write count, sum, min, max and mean of each field once the window closes (disabled if 0). Aggregates are written to the database and retention policy above, whatever the database and retention policy fields.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_SAMPLE_RATE,
+                    "Sample rate",
+                    "1",
+                    "Fraction of the matching messages written as points (eg. 0.1), chosen by hashing their series and sample field. Points get a sample_weight field (1 / rate) to scale counts back up.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new TextField(
+                    CK_INFLUX_SAMPLE_FIELD,
+                    "Sample field",
+                    "_id",
+                    "Message field hashed along with the series to decide whether to keep a message, the same on all Graylog nodes.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new DropdownField(
+                    CK_INFLUX_COALESCE,
+                    "Coalesce points",
+                    "none",
+                    COALESCE_MODES,
+                    "Merge points of a batch sharing series and timestamp into one, keeping the first or last value of fields carried by several of them.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_BUILDER_THREADS,
+                    "Point builder threads",
+                    1,
+                    "Number of threads building the points of large batches, including the output thread (sequential if 1).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_PARALLEL_THRESHOLD,
+                    "Parallel batch threshold",
+                    1000,
+                    "Number of messages from which the points of a batch are built by several threads.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_BATCH_SIZE,
+                    "Batch size",
+                    1000,
+                    "Number of points above which a batch is written without waiting for more.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_BATCH_LINGER,
+                    "Batch linger",
+                    1000,
+                    "Maximum time a batch waits for more points before being written (ms).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_QUEUE_SIZE,
+                    "Queue size",
+                    10000,
+                    "Maximum number of points waiting to be written (per server), the overflow policy applies beyond.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_WRITER_THREADS,
+                    "Writer threads",
+                    1,
+                    "Number of threads writing batches (per server).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new DropdownField(
+                    CK_INFLUX_OVERFLOW_POLICY,
+                    "Overflow policy",
+                    "drop_oldest",
+                    OVERFLOW_POLICIES,
+                    "What to do when the queue is full: wait for room (blocks the stream's output), drop the oldest or the newest points, or spill them to the spool (dropped without spool).",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_TARGET_LATENCY,
+                    "Target write latency",
+                    1000,
+                    "Write latency (ms) above which batches shrink, they grow back up to the batch size while writes are faster (fixed size if 0).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_RETRIES,
+                    "Write retries",
+                    3,
+                    "Number of retries of a write failing because of the server, before spooling or dropping the batch.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_RETRY_BACKOFF,
+                    "Retry backoff",
+                    100,
+                    "Maximum delay (ms) before the first retry, doubled for each following one (randomized).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_GZIP_LEVEL,
+                    "Compression level",
+                    0,
+                    "Gzip level of write requests, from 1 (fastest) to 9 (smallest), disabled if 0. Saves bandwidth at the cost of CPU on both ends.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_GZIP_MIN_SIZE,
+                    "Compression minimum size",
+                    1024,
+                    "Size under which write requests are sent uncompressed (bytes).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_UDP_PAYLOAD_SIZE,
+                    "UDP payload size",
+                    1400,
+                    "Maximum size of datagrams sent to udp:// urls (bytes), lines are packed without being split.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_SERIES_CACHE_SIZE,
+                    "Series cache size",
+                    10000,
+                    "Number of series (tag value combinations) whose encoded key is cached, disabled if 0.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_TAG_LIMIT,
+                    "Tag cardinality limit",
+                    0,
+                    "Maximum number of distinct values of each tag over the tag window (estimated), excess values are replaced by _overflow or dropped. Only the last 4096 values of a tag are kept once over the limit. Disabled if 0.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new NumberField(
+                    CK_INFLUX_TAG_WINDOW,
+                    "Tag cardinality window",
+                    3600,
+                    "Sliding window over which distinct tag values are counted (seconds).",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE
+                )
+            );
+            configurationRequest.addField(
+                new DropdownField(
+                    CK_INFLUX_TAG_OVERFLOW,
+                    "Tag cardinality overflow",
+                    "bucket",
+                    TAG_OVERFLOWS,
+                    "What to do with values of a tag above its cardinality limit: replace them by _overflow or drop the tag.",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
+            configurationRequest.addField(
+                new DropdownField(
+                    CK_INFLUX_TYPE_CONFLICTS,
+                    "Field type conflicts",
+                    "none",
+                    TYPE_CONFLICTS,
+                    "What to do with field values of another type than the one stored in InfluxDB for their database (which rejects their whole batch): convert them to the known type (eg. doubles are truncated to integers) or write them to a field suffixed by their type. Types are read from InfluxDB and learned from acknowledged writes (not over UDP).",
+                    ConfigurationField.Optional.OPTIONAL
+                )
+            );
             return configurationRequest;
         }
     }
@@ -1,11 +1,15 @@
 package org.tmsrv.graylog.influxdb;
 
+import com.google.inject.Scopes;
+
 import org.graylog2.plugin.PluginModule;
 
 
 public class InfluxOutputModule extends PluginModule {
     @Override
     protected void configure() {
+        // clients are shared node-wide between outputs
+        bind(InfluxClientRegistry.class).in(Scopes.SINGLETON);
         addMessageOutput(InfluxOutput.class, InfluxOutput.Factory.class);
     }
 }
@@ -0,0 +1,623 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.nio.file.Path;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.codahale.metrics.Timer;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Connection to one InfluxDB server with its own writer, optional spool and write pipeline.
+ *
+ * Lines are submitted to the shard's pipeline, whose threads batch and write them so that a
+ * slow server doesn't hold back the caller or the other servers. Servers are written over
+ * HTTP, or UDP for {@code udp://} urls.
+ *
+ * The server is reached (ping) by a background thread, retrying with backoff, so that creating
+ * a shard never waits on the network. Meanwhile, lines wait in the bounded queue of the
+ * pipeline. Batches may target any database and retention policy of the server, each
+ * database being created once before its first write. UDP writes never fail (datagrams are
+ * dropped instead), so UDP shards have no spool.
+ */
+final class InfluxShard implements Closeable {
+    enum Health {
+        CONNECTING,
+        HEALTHY,
+        DEGRADED,
+    }
+
+    /**
+     * Notified of the lines acknowledged by the server (HTTP transport only, UDP writes aren't acknowledged).
+     */
+    interface Listener {
+        void written(WriteTarget target, byte[] data, int offset, int length);
+    }
+
+    /**
+     * Write settings of a shard, which outputs must agree on to share it.
+     */
+    static final class Settings {
+        private final int _gzipLevel;
+        private final int _gzipMinSize;
+        private final int _udpPayloadSize;
+        private final Path _spoolDirectory;
+        private final long _spoolSize;
+        private final WritePipeline.Settings _pipeline;
+
+        /**
+         * @param gzipLevel compression level of write requests (0 to disable)
+         * @param gzipMinSize size under which write requests aren't compressed
+         * @param udpPayloadSize maximum size of datagrams (UDP transport)
+         * @param spoolDirectory spool location (null to disable spooling)
+         */
+        Settings(int gzipLevel, int gzipMinSize, int udpPayloadSize, Path spoolDirectory, long spoolSize, WritePipeline.Settings pipeline) {
+            this._gzipLevel = gzipLevel;
+            this._gzipMinSize = gzipMinSize;
+            this._udpPayloadSize = udpPayloadSize;
+            this._spoolDirectory = spoolDirectory;
+            this._spoolSize = spoolSize;
+            this._pipeline = pipeline;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this._gzipLevel, this._gzipMinSize, this._udpPayloadSize, this._spoolDirectory, this._spoolSize, this._pipeline);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Settings)) {
+                return false;
+            }
+
+            Settings settings = (Settings)other;
+
+            return this._gzipLevel == settings._gzipLevel
+                && this._gzipMinSize == settings._gzipMinSize
+                && this._udpPayloadSize == settings._udpPayloadSize
+                && Objects.equals(this._spoolDirectory, settings._spoolDirectory)
+                && this._spoolSize == settings._spoolSize
+                && this._pipeline.equals(settings._pipeline);
+        }
+
+        @Override
+        public String toString() {
+            return "gzip " + this._gzipLevel + "/" + this._gzipMinSize + ", udp payload " + this._udpPayloadSize + ", spool " + this._spoolDirectory + "/" + this._spoolSize + ", " + this._pipeline;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxShard.class);
+
+    static final long CLOSE_TIMEOUT_MS = 10000;
+
+    private static final long CONNECT_BACKOFF_MS = 1000;
+    private static final long MAX_CONNECT_BACKOFF_MS = 60000;
+
+    private final String _url;
+    private final InfluxClientMetrics _metrics;
+    private final InfluxDB _influxDB;
+    private final LineWriter _writer;
+    private final WriteSpool _spool;
+    private final WritePipeline _pipeline;
+    private final Thread _connector;
+
+    private final CountDownLatch _connected = new CountDownLatch(1);
+    private final AtomicBoolean _failing = new AtomicBoolean(false);
+    private final Set<String> _provisioned = ConcurrentHashMap.newKeySet();
+    private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile boolean _closing;
+
+
+    InfluxShard(String url, String username, String password, Settings settings, InfluxClientMetrics metrics) throws IOException {
+        this._url = url;
+        this._metrics = metrics;
+
+        if (url.startsWith("udp://")) {
+            // the database of the UDP listener is set in InfluxDB's configuration
+            this._influxDB = null;
+            this._writer = new InfluxUdpWriter(url, settings._udpPayloadSize, metrics);
+        } else {
+            // share one connection pool between the query client and the line protocol writer (neither connects yet)
+            OkHttpClient.Builder client = new OkHttpClient.Builder().connectionPool(new ConnectionPool());
+
+            this._influxDB = InfluxDBFactory.connect(url, username, password, client);
+            this._writer = new InfluxHttpWriter(client.build(), url, username, password, settings._gzipLevel, settings._gzipMinSize, metrics);
+        }
+        this._spool = settings._spoolDirectory != null && this._influxDB != null ? new WriteSpool(settings._spoolDirectory, settings._spoolSize, this::replay) : null;
+        this._pipeline = new WritePipeline(this.name(), settings._pipeline, this::write, this::spill, metrics);
+        if (this._influxDB != null) {
+            this._connector = new Thread(this::connect, "influxdb-connect-" + this.name());
+            this._connector.setDaemon(true);
+            this._connector.start();
+        } else {
+            this._connector = null;
+            this._connected.countDown();
+        }
+    }
+
+    String url() {
+        return this._url;
+    }
+
+    /**
+     * Url reduced to characters safe for file and metric names.
+     */
+    String name() {
+        return name(this._url);
+    }
+
+    static String name(String url) {
+        return url.replaceAll("[^A-Za-z0-9.-]+", "_");
+    }
+
+    /**
+     * Number of points waiting in the write pipeline.
+     */
+    int queueSize() {
+        return this._pipeline.size();
+    }
+
+    /**
+     * Current batch size of the write pipeline.
+     */
+    int batchSize() {
+        return this._pipeline.controller().size();
+    }
+
+    /**
+     * Bytes waiting in the spool.
+     */
+    long spoolSize() {
+        return this._spool != null ? this._spool.size() : 0;
+    }
+
+    /**
+     * Health of the shard: connecting until the server was reached once, then degraded while
+     * writes fail or spooled batches wait to be replayed.
+     */
+    Health health() {
+        if (this._connected.getCount() > 0) {
+            return Health.CONNECTING;
+        }
+        if (this._failing.get() || (this._spool != null && !this._spool.isEmpty())) {
+            return Health.DEGRADED;
+        }
+        return Health.HEALTHY;
+    }
+
+    /**
+     * Get the types of the fields of a measurement, waiting until the server was reached.
+     *
+     * @return InfluxDB type names by field key, empty if the server can't be queried (UDP) or the shard is closing
+     */
+    Map<String, String> fieldTypes(String database, String measurement) throws IOException {
+        if (this._influxDB == null || !this.awaitConnected()) {
+            return Collections.emptyMap();
+        }
+
+        QueryResult result;
+
+        try {
+            result = this._influxDB.query(new Query("SHOW FIELD KEYS FROM \"" + measurement.replace("\"", "\\\"") + "\"", database));
+        } catch (RuntimeException e) {
+            throw new IOException("InfluxDB query error (" + e.getMessage() + ")", e);
+        }
+        if (result.hasError()) {
+            throw new IOException("InfluxDB query error (" + result.getError() + ")");
+        }
+
+        Map<String, String> types = new HashMap<String, String>();
+
+        for (QueryResult.Result item : result.getResults()) {
+            if (item.hasError()) {
+                throw new IOException("InfluxDB query error (" + item.getError() + ")");
+            }
+            if (item.getSeries() == null) {
+                continue;
+            }
+            for (QueryResult.Series series : item.getSeries()) {
+                for (List<Object> row : series.getValues()) {
+                    // the first type wins when shards or retention policies disagree
+                    types.putIfAbsent(String.valueOf(row.get(0)), String.valueOf(row.get(1)));
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Register a listener of acknowledged writes.
+     */
+    void listen(Listener listener) {
+        if (this._influxDB != null) {
+            this._listeners.add(listener);
+        }
+    }
+
+    void unlisten(Listener listener) {
+        this._listeners.remove(listener);
+    }
+
+    /**
+     * Queue encoded lines for the write pipeline, which applies its overflow policy if it's full.
+     *
+     * @param lines number of lines in data
+     */
+    void submit(WriteTarget target, byte[] data, int lines) throws InterruptedException {
+        this._pipeline.submit(target, data, lines);
+    }
+
+    /**
+     * Write a batch, diverting it to the spool (if any) once retries are exhausted.
+     *
+     * Once something is spooled, later batches are spooled too until replay catches up, which
+     * keeps ordering and avoids waiting on a server known to be down.
+     */
+    private void write(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        if (!this.awaitConnected()) {
+            // closing before the server was ever reached
+            if (this._spool == null) {
+                throw new IOException("InfluxDB server was never reached (" + this._url + ")");
+            }
+        } else if (this._spool == null || this._spool.isEmpty()) {
+            try {
+                this.provision(target.database());
+                this.deliver(target, data, offset, length);
+                this.recovered();
+                return;
+            } catch (IOException e) {
+                if (!isTransient(e)) {
+                    this.recovered();
+                    throw e;
+                }
+                this.failed(e);
+                if (this._spool == null) {
+                    throw e;
+                }
+            }
+        }
+        if (this._spool.append(target.key(), data, offset, length)) {
+            this._metrics.spooled().mark();
+        } else {
+            this._metrics.dropped().mark();
+            LOG.warn("InfluxDB spool is full, dropping batch (" + this._url + ")");
+        }
+    }
+
+    /**
+     * Stop the write pipeline after it wrote the queued lines, what's left is spooled (or dropped).
+     */
+    @Override
+    public void close() throws IOException {
+        this._closing = true;
+        if (this._connector != null) {
+            this._connector.interrupt();
+        }
+        this._pipeline.close();
+        if (this._spool != null) {
+            this._spool.close();
+        }
+        this._writer.close();
+        if (this._influxDB != null) {
+            this._influxDB.close();
+        }
+    }
+
+    /**
+     * Spool lines which the pipeline couldn't queue or write, dropping them without a spool.
+     */
+    private void spill(WriteTarget target, byte[] data) {
+        try {
+            if (this._spool != null && this._spool.append(target.key(), data, 0, data.length)) {
+                this._metrics.spooled().mark();
+                return;
+            }
+        } catch (IOException e) {
+            LOG.error("InfluxDB shard failed to spool batch (" + this._url + ", " + e.getMessage() + ")");
+        }
+        this._metrics.dropped().mark();
+        LOG.warn("InfluxDB shard can't write or spool batch, dropping it (" + this._url + ")");
+    }
+
+    /**
+     * Write a spooled batch, dropping it if InfluxDB rejects its content.
+     */
+    private void replay(String key, byte[] data, int offset, int length) throws IOException {
+        if (this._connected.getCount() > 0) {
+            throw new IOException("InfluxDB server not reached yet (" + this._url + ")");
+        }
+
+        WriteTarget target = WriteTarget.parse(key);
+
+        try {
+            this.provision(target.database());
+            this.split(target, data, offset, length);
+            this.recovered();
+        } catch (IOException e) {
+            if (isTransient(e)) {
+                this.failed(e);
+                throw e;
+            }
+            this.recovered();
+            this._metrics.dropped().mark();
+            LOG.warn("InfluxDB rejected spooled batch, dropping it (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Reach the server, retrying with backoff until it's available.
+     */
+    private void connect() {
+        for (int attempt = 0; !this._closing; attempt++) {
+            try {
+                this._influxDB.ping();
+            } catch (RuntimeException e) {
+                if (attempt == 0) {
+                    LOG.warn("InfluxDB server is unavailable, retrying in background (" + this._url + ", " + e.getMessage() + ")");
+                }
+
+                long bound = Math.min(MAX_CONNECT_BACKOFF_MS, CONNECT_BACKOFF_MS << Math.min(attempt, 16));
+
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(bound / 2, bound + 1));
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            this._connected.countDown();
+            LOG.info("InfluxDB server reached (" + this._url + ")");
+            return;
+        }
+    }
+
+    /**
+     * Create a database before its first write, once for the lifetime of the shard (shared by all outputs).
+     *
+     * A failure is only logged (eg. not allowed to create databases), writes will tell whether the database exists.
+     */
+    private void provision(String database) {
+        if (this._influxDB == null || this._provisioned.contains(database)) {
+            return;
+        }
+        synchronized (this._provisioned) {
+            if (this._provisioned.contains(database)) {
+                return;
+            }
+            try {
+                QueryResult result = this._influxDB.query(new Query("CREATE DATABASE \"" + database.replace("\"", "\\\"") + "\""));
+
+                if (result != null && result.hasError()) {
+                    LOG.warn("InfluxDB failed to create database (" + this._url + "/" + database + ", " + result.getError() + ")");
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("InfluxDB failed to create database (" + this._url + "/" + database + ", " + e.getMessage() + ")");
+                if (e.getCause() instanceof IOException) {
+                    // server unavailable, try again before the next write
+                    return;
+                }
+            }
+            this._provisioned.add(database);
+        }
+    }
+
+    /**
+     * Wait until the server was reached once.
+     *
+     * @return false if the shard is closing before that
+     */
+    private boolean awaitConnected() {
+        try {
+            while (!this._connected.await(100, TimeUnit.MILLISECONDS)) {
+                if (this._closing) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Write a batch, retrying with backoff while the failure is due to the server.
+     */
+    private void deliver(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        BatchController controller = this._pipeline.controller();
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                this.split(target, data, offset, length);
+                return;
+            } catch (IOException e) {
+                if (!isTransient(e) || attempt >= controller.retries()) {
+                    throw e;
+                }
+                this._metrics.retried().mark();
+                try {
+                    Thread.sleep(controller.backoff(attempt));
+                } catch (InterruptedException interrupted) {
+                    // closing, give up retrying
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a batch, bisecting it when InfluxDB rejects its content so that only the bad points are dropped.
+     */
+    private void split(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        InfluxWriteException e = this.attempt(target, data, offset, length);
+
+        if (e != null) {
+            this.bisect(target, data, offset, length, e);
+        }
+    }
+
+    /**
+     * Write both halves of a rejected batch, bisecting further the ones which are rejected too.
+     *
+     * When both halves are rejected with the error of the whole batch, it's most likely the
+     * error of every point (eg. a missing retention policy) and the batch is dropped as a whole.
+     */
+    private void bisect(WriteTarget target, byte[] data, int offset, int length, InfluxWriteException e) throws IOException {
+        int middle = middle(data, offset, length);
+
+        if (middle < 0) {
+            this._metrics.rejected().mark();
+            LOG.warn("InfluxDB rejected point, dropping it (" + e.getMessage() + ")");
+            return;
+        }
+
+        InfluxWriteException first = this.attempt(target, data, offset, middle - offset);
+        InfluxWriteException second = this.attempt(target, data, middle, offset + length - middle);
+
+        // a request too large may still be too large in halves
+        if (e.code() == 400 && first != null && second != null && isSame(first, e) && isSame(second, e)) {
+            int lines = lines(data, offset, length);
+
+            this._metrics.rejected().mark(lines);
+            LOG.warn("InfluxDB rejected batch, dropping it (" + lines + " points, " + e.getMessage() + ")");
+            return;
+        }
+        if (first != null) {
+            this.bisect(target, data, offset, middle - offset, first);
+        }
+        if (second != null) {
+            this.bisect(target, data, middle, offset + length - middle, second);
+        }
+    }
+
+    /**
+     * Write a batch once.
+     *
+     * @return the error if InfluxDB rejected its content, null if it was written
+     */
+    private InfluxWriteException attempt(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        try {
+            this.post(target, data, offset, length);
+            return null;
+        } catch (InfluxWriteException e) {
+            if (!e.isSplittable()) {
+                throw e;
+            }
+            return e;
+        }
+    }
+
+    private static boolean isSame(InfluxWriteException e, InfluxWriteException other) {
+        return e.code() == other.code() && Objects.equals(e.getMessage(), other.getMessage());
+    }
+
+    /**
+     * Count the lines of a batch.
+     */
+    private static int lines(byte[] data, int offset, int length) {
+        int lines = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '\n') {
+                lines++;
+            }
+        }
+        // the last line may not be terminated
+        return length > 0 && data[offset + length - 1] != '\n' ? lines + 1 : lines;
+    }
+
+    /**
+     * Find the line boundary closest to the middle of a batch.
+     *
+     * @return offset of the first line of the second half, -1 if there is a single line
+     */
+    private static int middle(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int half = offset + length / 2;
+
+        for (int i = half; i < end - 1; i++) {
+            if (data[i] == '\n') {
+                return i + 1;
+            }
+        }
+        for (int i = Math.min(half, end - 1) - 1; i >= offset; i--) {
+            if (data[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write a batch to the server, timing the request and reporting it to the batch controller and the listeners.
+     */
+    private void post(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        Timer.Context timer = this._metrics.writes().time();
+
+        try {
+            this._writer.write(target, data, offset, length);
+            this._pipeline.controller().succeeded(timer.stop());
+        } catch (IOException e) {
+            timer.stop();
+            this._metrics.failed().mark();
+            if (isTransient(e) || (e instanceof InfluxWriteException && ((InfluxWriteException)e).code() == 413)) {
+                this._pipeline.controller().failed();
+            }
+            throw e;
+        }
+        for (Listener listener : this._listeners) {
+            try {
+                listener.written(target, data, offset, length);
+            } catch (RuntimeException e) {
+                LOG.warn("InfluxDB write listener failed (" + this._url + ", " + e + ")");
+            }
+        }
+    }
+
+    /**
+     * Check whether a write failure is due to the server (or network) rather than the content of the batch.
+     */
+    private static boolean isTransient(IOException e) {
+        return !(e instanceof InfluxWriteException) || ((InfluxWriteException)e).isRetryable();
+    }
+
+    private void failed(IOException e) {
+        if (this._failing.compareAndSet(false, true)) {
+            LOG.warn("InfluxDB server became unavailable (" + this._url + ", " + e.getMessage() + ")");
+        }
+    }
+
+    private void recovered() {
+        if (this._failing.compareAndSet(true, false)) {
+            LOG.info("InfluxDB server is available again (" + this._url + ")");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sends encoded line protocol to the UDP listener of an InfluxDB server ({@code udp://host:port}).
+ *
+ * Lines are packed into datagrams up to a maximum payload, a line is never split across
+ * datagrams (a line larger than the payload is sent alone). The channel is non-blocking:
+ * datagrams which don't fit in the socket buffer are dropped, as UDP delivery isn't
+ * guaranteed anyway. The database is the one configured on the listener.
+ *
+ * Send failures (eg. {@link java.net.PortUnreachableException} reported for an earlier
+ * datagram) drop the datagram as well rather than failing the batch: part of the batch may
+ * have been delivered already, so retrying or spooling it would duplicate points.
+ */
+final class InfluxUdpWriter implements LineWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxUdpWriter.class);
+
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final DatagramChannel _channel;
+    private final int _payloadSize;
+    private final InfluxClientMetrics _metrics;
+    private final AtomicBoolean _failing = new AtomicBoolean(false);
+
+
+    /**
+     * @param payloadSize maximum size of a datagram's payload (eg. MTU minus IP and UDP headers)
+     */
+    InfluxUdpWriter(String url, int payloadSize, InfluxClientMetrics metrics) throws IOException {
+        URI uri = URI.create(url);
+
+        if (!"udp".equals(uri.getScheme()) || uri.getHost() == null || uri.getPort() <= 0) {
+            throw new IllegalArgumentException("Invalid InfluxDB UDP url (" + url + ")");
+        }
+        if (payloadSize <= 0 || payloadSize > MAX_DATAGRAM) {
+            throw new IllegalArgumentException("Invalid UDP payload size (" + payloadSize + ")");
+        }
+        this._payloadSize = payloadSize;
+        this._metrics = metrics;
+        this._channel = DatagramChannel.open();
+        try {
+            this._channel.configureBlocking(false);
+            this._channel.connect(new InetSocketAddress(uri.getHost(), uri.getPort()));
+        } catch (IOException e) {
+            this._channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(WriteTarget target, byte[] data, int offset, int length) {
+        int end = offset + length;
+        int start = offset;
+        int packed = offset;
+
+        this._metrics.bytesEncoded().mark(length);
+        while (packed < end) {
+            int line = packed;
+
+            while (line < end && data[line] != '\n') {
+                line++;
+            }
+            line = Math.min(line + 1, end);
+            if (line - start > this._payloadSize && packed > start) {
+                // the line doesn't fit anymore, send what was packed so far
+                this.send(data, start, packed - start);
+                start = packed;
+            }
+            packed = line;
+        }
+        if (packed > start) {
+            this.send(data, start, packed - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this._channel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close InfluxDB UDP channel (" + e + ")");
+        }
+    }
+
+    private void send(byte[] data, int offset, int length) {
+        if (length > MAX_DATAGRAM) {
+            this._metrics.packetsDropped().mark();
+            LOG.warn("InfluxDB line is too large for a datagram, dropping it (" + length + " bytes)");
+            return;
+        }
+
+        int written;
+
+        try {
+            written = this._channel.write(ByteBuffer.wrap(data, offset, length));
+        } catch (IOException e) {
+            this._metrics.packetsDropped().mark();
+            if (this._failing.compareAndSet(false, true)) {
+                LOG.warn("InfluxDB UDP listener can't be reached, dropping datagrams (" + e + ")");
+            }
+            return;
+        }
+        if (written == 0) {
+            this._metrics.packetsDropped().mark();
+            return;
+        }
+        if (this._failing.compareAndSet(true, false)) {
+            LOG.info("InfluxDB UDP listener can be reached again");
+        }
+        this._metrics.packetsSent().mark();
+        this._metrics.bytesSent().mark(length);
+    }
+}
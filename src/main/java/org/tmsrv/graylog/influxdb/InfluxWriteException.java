@@ -0,0 +1,34 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.IOException;
+
+
+/**
+ * Raised when InfluxDB answers a write request with an error status.
+ */
+class InfluxWriteException extends IOException {
+    private final int _code;
+
+    InfluxWriteException(int code, String message) {
+        super("InfluxDB write failed (" + code + ": " + message + ")");
+        this._code = code;
+    }
+
+    int code() {
+        return this._code;
+    }
+
+    /**
+     * Check whether the same request may succeed later (server errors and throttling).
+     */
+    boolean isRetryable() {
+        return this._code >= 500 || this._code == 408 || this._code == 429;
+    }
+
+    /**
+     * Check whether parts of the request may succeed (bad points or request too large).
+     */
+    boolean isSplittable() {
+        return this._code == 400 || this._code == 413;
+    }
+}
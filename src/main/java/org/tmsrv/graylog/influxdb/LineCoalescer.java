@@ -0,0 +1,238 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Arrays;
+
+
+/**
+ * Merges the lines of a batch which share their series key (measurement and tags) and timestamp.
+ *
+ * InfluxDB stores such points as a single one, later fields overwriting earlier ones. Merging
+ * them beforehand saves encoding, sending and indexing lines, and makes the conflict rule
+ * explicit: when several lines carry the same field, either the first or the last value is
+ * kept. Merged lines keep the position of their first line in the batch.
+ *
+ * Duplicates are looked up in an open-addressing table over the encoded lines, so a batch
+ * without any is left untouched and doesn't allocate beyond the table.
+ */
+final class LineCoalescer {
+    enum Conflict {
+        /** Keep the value of the first line carrying a field. */
+        FIRST,
+        /** Keep the value of the last line carrying a field, like InfluxDB does. */
+        LAST,
+    }
+
+    private static final ThreadLocal<LineProtocolEncoder> LOCAL = ThreadLocal.withInitial(LineProtocolEncoder::new);
+
+    private final Conflict _conflict;
+    private final InfluxMetrics _metrics;
+
+
+    LineCoalescer(Conflict conflict, InfluxMetrics metrics) {
+        this._conflict = conflict;
+        this._metrics = metrics;
+    }
+
+    /**
+     * Merge the lines of an encoder sharing series key and timestamp.
+     *
+     * @return the encoder itself if there is nothing to merge, otherwise an encoder of the
+     *         current thread holding the merged lines (valid until the next call)
+     */
+    LineProtocolEncoder coalesce(LineProtocolEncoder source) {
+        int lines = source.lines();
+
+        if (lines < 2) {
+            return source;
+        }
+
+        byte[] buffer = source.buffer();
+        int[] table = new int[Integer.highestOneBit(lines - 1) << 2];
+        int[] stamps = new int[lines];
+        int[] next = new int[lines];
+        int[] last = new int[lines];
+        int duplicates = 0;
+
+        for (int i = 0; i < lines; i++) {
+            int start = source.lineStart(i);
+            int seriesEnd = source.seriesEnd(i);
+            int stamp = stampStart(buffer, seriesEnd, source.lineEnd(i));
+            long hash = Hash64.hash(buffer, start, seriesEnd - start) ^ Hash64.hash(buffer, stamp, source.lineEnd(i) - stamp);
+            int slot = (int)Hash64.mix(hash) & (table.length - 1);
+
+            stamps[i] = stamp;
+            next[i] = -1;
+            last[i] = i;
+            while (table[slot] != 0) {
+                int head = table[slot] - 1;
+
+                if (same(source, stamps, head, i)) {
+                    next[last[head]] = i;
+                    last[head] = i;
+                    last[i] = -1;
+                    duplicates++;
+                    break;
+                }
+                slot = (slot + 1) & (table.length - 1);
+            }
+            if (table[slot] == 0) {
+                table[slot] = i + 1;
+            }
+        }
+        if (duplicates == 0) {
+            return source;
+        }
+
+        LineProtocolEncoder target = LOCAL.get();
+        int[] segments = new int[64];
+        int conflicts = 0;
+
+        target.reset();
+        for (int i = 0; i < lines; i++) {
+            if (last[i] < 0) {
+                // merged into a previous line
+                continue;
+            }
+
+            int start = source.lineStart(i);
+
+            target.beginLine(buffer, start, source.seriesEnd(i) - start);
+            if (next[i] < 0) {
+                target.field(buffer, source.seriesEnd(i) + 1, stamps[i] - source.seriesEnd(i) - 2);
+            } else {
+                int count = 0;
+
+                for (int line = i; line >= 0; line = next[line]) {
+                    int position = source.seriesEnd(line) + 1;
+                    int end = stamps[line] - 1;
+
+                    while (position < end) {
+                        int keyEnd = keyEnd(buffer, position, end);
+                        int fieldEnd = fieldEnd(buffer, keyEnd, end);
+                        int existing = find(buffer, segments, count, position, keyEnd);
+
+                        if (existing < 0) {
+                            if (count * 3 + 3 > segments.length) {
+                                segments = Arrays.copyOf(segments, segments.length * 2);
+                            }
+                            segments[count * 3] = position;
+                            segments[count * 3 + 1] = keyEnd;
+                            segments[count * 3 + 2] = fieldEnd;
+                            count++;
+                        } else {
+                            conflicts++;
+                            if (this._conflict == Conflict.LAST) {
+                                segments[existing * 3] = position;
+                                segments[existing * 3 + 1] = keyEnd;
+                                segments[existing * 3 + 2] = fieldEnd;
+                            }
+                        }
+                        position = fieldEnd + 1;
+                    }
+                }
+                for (int j = 0; j < count; j++) {
+                    target.field(buffer, segments[j * 3], segments[j * 3 + 2] - segments[j * 3]);
+                }
+            }
+            target.endLineNanos(parseStamp(buffer, stamps[i], source.lineEnd(i) - 1));
+        }
+        this._metrics.coalesced().mark(duplicates);
+        if (conflicts > 0) {
+            this._metrics.conflicts().mark(conflicts);
+        }
+        return target;
+    }
+
+    /**
+     * Check whether two lines have the same series key and timestamp.
+     */
+    private static boolean same(LineProtocolEncoder source, int[] stamps, int a, int b) {
+        byte[] buffer = source.buffer();
+        int seriesA = source.seriesEnd(a) - source.lineStart(a);
+        int seriesB = source.seriesEnd(b) - source.lineStart(b);
+        int stampA = source.lineEnd(a) - stamps[a];
+        int stampB = source.lineEnd(b) - stamps[b];
+
+        return seriesA == seriesB
+            && stampA == stampB
+            && equals(buffer, source.lineStart(a), source.lineStart(b), seriesA)
+            && equals(buffer, stamps[a], stamps[b], stampA);
+    }
+
+    private static boolean equals(byte[] buffer, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[a + i] != buffer[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the field with the given key among the merged ones.
+     *
+     * @return index of the field, -1 if missing
+     */
+    private static int find(byte[] buffer, int[] segments, int count, int keyStart, int keyEnd) {
+        for (int j = 0; j < count; j++) {
+            if (segments[j * 3 + 1] - segments[j * 3] == keyEnd - keyStart && equals(buffer, segments[j * 3], keyStart, keyEnd - keyStart)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Offset of the timestamp of a line, following the last space (timestamps never contain one).
+     */
+    private static int stampStart(byte[] buffer, int seriesEnd, int lineEnd) {
+        int i = lineEnd - 1;
+
+        while (i > seriesEnd && buffer[i - 1] != ' ') {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * Offset of the unescaped '=' ending a field key.
+     */
+    private static int keyEnd(byte[] buffer, int position, int end) {
+        for (int i = position; i < end; i++) {
+            if (buffer[i] == '\\') {
+                i++;
+            } else if (buffer[i] == '=') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Offset of the ',' (or end of fields) ending a field value, skipping over quoted strings.
+     */
+    private static int fieldEnd(byte[] buffer, int position, int end) {
+        boolean quoted = false;
+
+        for (int i = position; i < end; i++) {
+            if (buffer[i] == '\\') {
+                i++;
+            } else if (buffer[i] == '"') {
+                quoted = !quoted;
+            } else if (buffer[i] == ',' && !quoted) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static long parseStamp(byte[] buffer, int start, int end) {
+        boolean negative = buffer[start] == '-';
+        long value = 0;
+
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 - (buffer[i] - '0');
+        }
+        return negative ? value : -value;
+    }
+}
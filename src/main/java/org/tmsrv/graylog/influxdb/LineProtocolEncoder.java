@@ -0,0 +1,438 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Arrays;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Encodes points in InfluxDB line protocol directly into a reusable byte buffer.
+ *
+ * The output is byte-identical to influxdb-java's {@code BatchPoints.lineProtocol()} at
+ * nanosecond precision, provided that tags and fields are appended sorted by key: keys and
+ * measurement are escaped the same way, doubles are written in plain decimal notation
+ * and integers carry the {@code i} suffix. Non-finite doubles are skipped since InfluxDB
+ * would reject the whole batch because of them.
+ *
+ * The encoder keeps track of where each line and its series key (measurement and tags) end,
+ * so that a batch can be split or inspected without parsing it back.
+ *
+ * Instances are not thread-safe, use {@link #local()} to get the encoder bound to the
+ * current thread.
+ */
+final class LineProtocolEncoder {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<LineProtocolEncoder> LOCAL = ThreadLocal.withInitial(LineProtocolEncoder::new);
+
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] ZERO = { '0', '.', '0' };
+    private static final byte[] NEGATIVE_ZERO = { '-', '0', '.', '0' };
+    private static final byte[] MIN_LONG = { '-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8' };
+
+    private byte[] _buffer = new byte[INITIAL_CAPACITY];
+    private int _size = 0;
+    private int _lines = 0;
+    private int[] _lineEnds = new int[256];
+    private int[] _seriesEnds = new int[256];
+    private int _lineStart = 0;
+    private int _seriesEnd = 0;
+    private int _fieldCount = 0;
+
+
+    /**
+     * Get the encoder of the current thread, emptied of any previous content.
+     */
+    static LineProtocolEncoder local() {
+        LineProtocolEncoder encoder = LOCAL.get();
+
+        encoder.reset();
+        return encoder;
+    }
+
+    byte[] buffer() {
+        return this._buffer;
+    }
+
+    int size() {
+        return this._size;
+    }
+
+    int lines() {
+        return this._lines;
+    }
+
+    /**
+     * Offset of the first byte of a line.
+     */
+    int lineStart(int line) {
+        return line > 0 ? this._lineEnds[line - 1] : 0;
+    }
+
+    /**
+     * Offset following the newline terminating a line.
+     */
+    int lineEnd(int line) {
+        return this._lineEnds[line];
+    }
+
+    /**
+     * Offset following the series key (measurement and tags) of a line.
+     */
+    int seriesEnd(int line) {
+        return this._seriesEnds[line];
+    }
+
+    /**
+     * Discard all lines, releasing the buffer if a previous batch made it grow too large.
+     */
+    void reset() {
+        if (this._buffer.length > RETAINED_CAPACITY) {
+            this._buffer = new byte[INITIAL_CAPACITY];
+            this._lineEnds = new int[256];
+            this._seriesEnds = new int[256];
+        }
+        this._size = 0;
+        this._lines = 0;
+        this._lineStart = 0;
+        this._fieldCount = 0;
+    }
+
+    /**
+     * Append all lines of another encoder.
+     */
+    void append(LineProtocolEncoder other) {
+        int offset = this._size;
+
+        this.appendBytes(other._buffer, 0, other._size);
+        if (this._lines + other._lines > this._lineEnds.length) {
+            int capacity = Math.max(this._lineEnds.length * 2, this._lines + other._lines);
+
+            this._lineEnds = Arrays.copyOf(this._lineEnds, capacity);
+            this._seriesEnds = Arrays.copyOf(this._seriesEnds, capacity);
+        }
+        for (int i = 0; i < other._lines; i++) {
+            this._lineEnds[this._lines + i] = other._lineEnds[i] + offset;
+            this._seriesEnds[this._lines + i] = other._seriesEnds[i] + offset;
+        }
+        this._lines += other._lines;
+        this._lineStart = this._size;
+    }
+
+    /**
+     * Start a new line with the given measurement.
+     */
+    void beginLine(String measurement) {
+        this._lineStart = this._size;
+        this._fieldCount = 0;
+        this.appendKey(measurement);
+    }
+
+    /**
+     * Start a new line with an already encoded series key (as returned by {@link #series()}).
+     */
+    void beginLine(byte[] series) {
+        this.beginLine(series, 0, series.length);
+    }
+
+    /**
+     * Start a new line with an already encoded series key.
+     */
+    void beginLine(byte[] data, int offset, int length) {
+        this._lineStart = this._size;
+        this._fieldCount = 0;
+        this.appendBytes(data, offset, length);
+    }
+
+    /**
+     * Copy of the series key of the current line, valid until the first field is appended.
+     */
+    byte[] series() {
+        return Arrays.copyOfRange(this._buffer, this._lineStart, this._size);
+    }
+
+    /**
+     * Append a tag to the current line, empty values are skipped like influxdb-java does.
+     */
+    void tag(String key, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        this.ensure(1);
+        this._buffer[this._size++] = ',';
+        this.appendKey(key);
+        this.ensure(1);
+        this._buffer[this._size++] = '=';
+        this.appendKey(value);
+    }
+
+    /**
+     * Append a field to the current line (value is either a boolean, a number or a string).
+     *
+     * @return false if the value was skipped
+     */
+    boolean field(String key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        if ((value instanceof Double || value instanceof Float) && !Double.isFinite(((Number)value).doubleValue())) {
+            return false;
+        }
+        if (this._fieldCount == 0) {
+            this._seriesEnd = this._size;
+        }
+        this.ensure(1);
+        this._buffer[this._size++] = (byte)(this._fieldCount == 0 ? ' ' : ',');
+        this.appendKey(key);
+        this.ensure(1);
+        this._buffer[this._size++] = '=';
+        if (value instanceof Double || value instanceof Float) {
+            this.appendDouble(((Number)value).doubleValue());
+        } else if (value instanceof Number) {
+            this.appendLong(((Number)value).longValue());
+            this.ensure(1);
+            this._buffer[this._size++] = 'i';
+        } else if (value instanceof Boolean) {
+            this.appendBytes(((Boolean)value).booleanValue() ? TRUE : FALSE);
+        } else {
+            String text = String.valueOf(value);
+
+            this.ensure(1);
+            this._buffer[this._size++] = '"';
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+
+                if (c == '\\' || c == '"') {
+                    this.ensure(1);
+                    this._buffer[this._size++] = '\\';
+                }
+                i = this.appendChar(text, i, c);
+            }
+            this.ensure(1);
+            this._buffer[this._size++] = '"';
+        }
+        this._fieldCount++;
+        return true;
+    }
+
+    /**
+     * Append already encoded fields ({@code key=value[,key=value...]}) to the current line.
+     */
+    void field(byte[] data, int offset, int length) {
+        if (this._fieldCount == 0) {
+            this._seriesEnd = this._size;
+        }
+        this.ensure(1);
+        this._buffer[this._size++] = (byte)(this._fieldCount == 0 ? ' ' : ',');
+        this.appendBytes(data, offset, length);
+        this._fieldCount++;
+    }
+
+    /**
+     * Terminate the current line with its timestamp.
+     *
+     * A line without any field is not valid, in which case it is rolled back.
+     *
+     * @return false if the line was discarded
+     */
+    boolean endLine(long timestampMillis) {
+        return this.endLineNanos(TimeUnit.MILLISECONDS.toNanos(timestampMillis));
+    }
+
+    /**
+     * Terminate the current line with its timestamp in nanoseconds.
+     *
+     * @return false if the line was discarded
+     */
+    boolean endLineNanos(long timestamp) {
+        if (this._fieldCount == 0) {
+            this._size = this._lineStart;
+            return false;
+        }
+        this.ensure(1);
+        this._buffer[this._size++] = ' ';
+        this.appendLong(timestamp);
+        this.ensure(1);
+        this._buffer[this._size++] = '\n';
+        if (this._lines == this._lineEnds.length) {
+            this._lineEnds = Arrays.copyOf(this._lineEnds, this._lines * 2);
+            this._seriesEnds = Arrays.copyOf(this._seriesEnds, this._lines * 2);
+        }
+        this._lineEnds[this._lines] = this._size;
+        this._seriesEnds[this._lines] = this._seriesEnd;
+        this._lines++;
+        this._fieldCount = 0;
+        return true;
+    }
+
+    /**
+     * Roll back the current line.
+     */
+    void discardLine() {
+        this._size = this._lineStart;
+        this._fieldCount = 0;
+    }
+
+    private void appendKey(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+
+            if (c == ' ' || c == ',' || c == '=') {
+                this.ensure(1);
+                this._buffer[this._size++] = '\\';
+            }
+            i = this.appendChar(key, i, c);
+        }
+    }
+
+    /**
+     * Append a character as UTF-8, unpaired surrogates are replaced by '?' like String.getBytes() does.
+     *
+     * @return index of the last character consumed
+     */
+    private int appendChar(String text, int i, char c) {
+        this.ensure(4);
+        if (c < 0x80) {
+            this._buffer[this._size++] = (byte)c;
+        } else if (c < 0x800) {
+            this._buffer[this._size++] = (byte)(0xc0 | (c >> 6));
+            this._buffer[this._size++] = (byte)(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, text.charAt(i + 1));
+
+            this._buffer[this._size++] = (byte)(0xf0 | (cp >> 18));
+            this._buffer[this._size++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+            this._buffer[this._size++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+            this._buffer[this._size++] = (byte)(0x80 | (cp & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            this._buffer[this._size++] = '?';
+        } else {
+            this._buffer[this._size++] = (byte)(0xe0 | (c >> 12));
+            this._buffer[this._size++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            this._buffer[this._size++] = (byte)(0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void appendBytes(byte[] bytes) {
+        this.appendBytes(bytes, 0, bytes.length);
+    }
+
+    private void appendBytes(byte[] bytes, int offset, int length) {
+        this.ensure(length);
+        System.arraycopy(bytes, offset, this._buffer, this._size, length);
+        this._size += length;
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            this.appendBytes(MIN_LONG);
+            return;
+        }
+        this.ensure(20);
+        if (value < 0) {
+            this._buffer[this._size++] = '-';
+            value = -value;
+        }
+
+        int start = this._size;
+
+        do {
+            this._buffer[this._size++] = (byte)('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = this._size - 1; i < j; i++, j--) {
+            byte b = this._buffer[i];
+
+            this._buffer[i] = this._buffer[j];
+            this._buffer[j] = b;
+        }
+    }
+
+    /**
+     * Append a double the way influxdb-java's NumberFormat does: shortest representation
+     * (as Double.toString), plain notation and at least one fraction digit.
+     */
+    private void appendDouble(double value) {
+        if (value == 0.0) {
+            this.appendBytes(Double.doubleToRawLongBits(value) < 0 ? NEGATIVE_ZERO : ZERO);
+            return;
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            this.appendLong((long)value);
+            this.ensure(2);
+            this._buffer[this._size++] = '.';
+            this._buffer[this._size++] = '0';
+            return;
+        }
+
+        String text = Double.toString(value);
+        int exp = text.indexOf('E');
+
+        if (exp < 0) {
+            this.ensure(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                this._buffer[this._size++] = (byte)text.charAt(i);
+            }
+            return;
+        }
+
+        // scientific notation: [-]d.dddE[-]n, expand into plain notation
+        int exponent = Integer.parseInt(text.substring(exp + 1));
+        int offset = text.charAt(0) == '-' ? 1 : 0;
+        int digitsEnd = exp;
+
+        while (digitsEnd > offset + 2 && text.charAt(digitsEnd - 1) == '0') {
+            digitsEnd--;
+        }
+
+        int digits = digitsEnd - offset - 1;
+
+        this.ensure(digits + Math.abs(exponent) + 4);
+        if (offset > 0) {
+            this._buffer[this._size++] = '-';
+        }
+        if (exponent < 0) {
+            this._buffer[this._size++] = '0';
+            this._buffer[this._size++] = '.';
+            for (int i = -1; i > exponent; i--) {
+                this._buffer[this._size++] = '0';
+            }
+            for (int i = offset; i < digitsEnd; i++) {
+                if (text.charAt(i) != '.') {
+                    this._buffer[this._size++] = (byte)text.charAt(i);
+                }
+            }
+            return;
+        }
+
+        int position = 0;
+
+        for (int i = offset; i < digitsEnd; i++) {
+            if (text.charAt(i) == '.') {
+                continue;
+            }
+            if (position == exponent + 1) {
+                this._buffer[this._size++] = '.';
+            }
+            this._buffer[this._size++] = (byte)text.charAt(i);
+            position++;
+        }
+        if (position <= exponent + 1) {
+            for (; position < exponent + 1; position++) {
+                this._buffer[this._size++] = '0';
+            }
+            this._buffer[this._size++] = '.';
+            this._buffer[this._size++] = '0';
+        }
+    }
+
+    private void ensure(int count) {
+        if (this._size + count > this._buffer.length) {
+            this._buffer = Arrays.copyOf(this._buffer, Math.max(this._buffer.length * 2, this._size + count));
+        }
+    }
+}
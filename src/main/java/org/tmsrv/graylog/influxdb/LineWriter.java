@@ -0,0 +1,18 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.IOException;
+
+
+/**
+ * Transport of encoded line protocol to an InfluxDB server.
+ */
+interface LineWriter {
+    /**
+     * Write lines synchronously.
+     *
+     * @param target database and retention policy (if the transport supports choosing them)
+     */
+    void write(WriteTarget target, byte[] data, int offset, int length) throws IOException;
+
+    void close();
+}
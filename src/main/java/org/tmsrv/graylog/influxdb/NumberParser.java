@@ -0,0 +1,280 @@
+package org.tmsrv.graylog.influxdb;
+
+
+/**
+ * Parses decimal numbers from text without allocating or throwing, with an optional unit suffix.
+ *
+ * Accepted syntax is {@code [sign] digits [. digits] [e [sign] digits] [unit]}, surrounded by
+ * optional spaces. A parser built for a unit converts values suffixed with any unit of the
+ * same kind (time, bytes or SI multipliers) into that unit, values without suffix being
+ * already in it. The plain parser rejects any suffix. Minutes are only spelled {@code min},
+ * as a bare {@code m} could as well stand for milli.
+ *
+ * Numbers of up to 15 significant digits with a small exponent are computed exactly (both
+ * operands of the scaling being exact doubles), longer ones go through
+ * {@link Double#parseDouble(String)} once validated.
+ *
+ * Units are kept as a power of ten and an integer multiplier (60 for minutes, 1024 for KiB...),
+ * so the power of ten of a conversion is folded into the exponent of the number and only
+ * differing multipliers cost a further multiplication or division: {@code 3us} in nanoseconds
+ * is exactly 3000.
+ */
+final class NumberParser {
+    static final NumberParser PLAIN = new NumberParser();
+
+    private static final int NONE = -1;
+    private static final int SCALAR = 0;
+    private static final int TIME = 1;
+    private static final int BYTES = 2;
+
+    private static final String[] UNITS = {
+        "", "k", "K", "M", "G", "T", "P",
+        "ns", "us", "\u00b5s", "ms", "s", "min", "h", "d",
+        "B", "kB", "KB", "MB", "GB", "TB", "PB", "KiB", "MiB", "GiB", "TiB",
+    };
+    private static final int[] KINDS = {
+        SCALAR, SCALAR, SCALAR, SCALAR, SCALAR, SCALAR, SCALAR,
+        TIME, TIME, TIME, TIME, TIME, TIME, TIME, TIME,
+        BYTES, BYTES, BYTES, BYTES, BYTES, BYTES, BYTES, BYTES, BYTES, BYTES, BYTES,
+    };
+    private static final int[] EXPONENTS = {
+        0, 3, 3, 6, 9, 12, 15,
+        -9, -6, -6, -3, 0, 0, 0, 0,
+        0, 3, 3, 6, 9, 12, 15, 0, 0, 0, 0,
+    };
+    private static final long[] MULTIPLIERS = {
+        1, 1, 1, 1, 1, 1, 1,
+        1, 1, 1, 1, 1, 60, 3600, 86400,
+        1, 1, 1, 1, 1, 1, 1, 1024L, 1048576L, 1073741824L, 1099511627776L,
+    };
+
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final int MAX_DIGITS = 18;
+    private static final int EXACT_DIGITS = 15;
+
+    private final int _kind;
+    private final int _exponent;
+    private final long _multiplier;
+
+
+    private NumberParser() {
+        this._kind = NONE;
+        this._exponent = 0;
+        this._multiplier = 1;
+    }
+
+    /**
+     * @param unit unit values are converted to (eg. {@code ms}, {@code B}, or empty for SI multipliers)
+     */
+    NumberParser(String unit) {
+        int index = find(unit, 0, unit.length(), NONE);
+
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown unit (" + unit + ")");
+        }
+        this._kind = KINDS[index];
+        this._exponent = EXPONENTS[index];
+        this._multiplier = MULTIPLIERS[index];
+    }
+
+    /**
+     * Parse a number, converted to the unit of the parser.
+     *
+     * @return NaN if the text isn't a number (or has an unknown unit)
+     */
+    double parse(CharSequence text) {
+        int length = text.length();
+        int i = skipSpaces(text, 0, length);
+        int start = i;
+        boolean negative = false;
+
+        if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        boolean truncated = false;
+        boolean fraction = false;
+
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else {
+                    truncated = true;
+                    if (!fraction) {
+                        exponent++;
+                    }
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            // an exponent needs digits, otherwise it's the start of a unit
+            int j = i + 1;
+            boolean negativeExponent = false;
+
+            if (j < length && (text.charAt(j) == '-' || text.charAt(j) == '+')) {
+                negativeExponent = text.charAt(j) == '-';
+                j++;
+            }
+            if (j < length && text.charAt(j) >= '0' && text.charAt(j) <= '9') {
+                int value = 0;
+
+                for (; j < length && text.charAt(j) >= '0' && text.charAt(j) <= '9'; j++) {
+                    if (value < 100000) {
+                        value = value * 10 + (text.charAt(j) - '0');
+                    }
+                }
+                exponent += negativeExponent ? -value : value;
+                i = j;
+            }
+        }
+
+        int end = i;
+        int suffixStart = skipSpaces(text, i, length);
+        int suffixEnd = length;
+
+        while (suffixEnd > suffixStart && isSpace(text.charAt(suffixEnd - 1))) {
+            suffixEnd--;
+        }
+
+        int scale = 0;
+        long multiplier = this._multiplier;
+
+        if (suffixEnd > suffixStart) {
+            int unit = this._kind != NONE ? find(text, suffixStart, suffixEnd, this._kind) : -1;
+
+            if (unit < 0) {
+                return Double.NaN;
+            }
+            scale = EXPONENTS[unit] - this._exponent;
+            multiplier = MULTIPLIERS[unit];
+        }
+
+        double value;
+
+        exponent += scale;
+        if (!truncated && digits <= EXACT_DIGITS && exponent >= -22 && exponent <= 22) {
+            value = exponent >= 0 ? mantissa * POWERS[exponent] : mantissa / POWERS[-exponent];
+            if (negative) {
+                value = -value;
+            }
+        } else {
+            // validated above, can't throw
+            value = Double.parseDouble(text.subSequence(start, end).toString());
+            // units of a kind are at most 15 orders of magnitude apart
+            value = scale >= 0 ? value * POWERS[scale] : value / POWERS[-scale];
+        }
+
+        if (multiplier == this._multiplier) {
+            return value;
+        } else if (multiplier % this._multiplier == 0) {
+            return value * (multiplier / this._multiplier);
+        } else if (this._multiplier % multiplier == 0) {
+            return value / (this._multiplier / multiplier);
+        }
+        return value * multiplier / this._multiplier;
+    }
+
+    /**
+     * Parse a number as a long, integers being parsed exactly and other numbers rounded.
+     *
+     * Unlike {@link #parse(CharSequence)}, the result is boxed: no long value is left to
+     * tell invalid text apart, and callers box it anyway.
+     *
+     * @return null if the text isn't a number or doesn't fit in a long
+     */
+    Long parseLong(CharSequence text) {
+        int length = text.length();
+        int i = skipSpaces(text, 0, length);
+        boolean negative = false;
+
+        if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+
+        // accumulate negatively to reach Long.MIN_VALUE
+        long value = 0;
+        int start = i;
+
+        for (; i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++) {
+            int digit = text.charAt(i) - '0';
+
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                return null;
+            }
+            value = value * 10 - digit;
+        }
+        if (i > start && skipSpaces(text, i, length) == length) {
+            if (negative) {
+                return value;
+            }
+            return value != Long.MIN_VALUE ? -value : null;
+        }
+
+        double parsed = this.parse(text);
+
+        if (Double.isNaN(parsed) || parsed >= 0x1p63 || parsed < -0x1p63) {
+            return null;
+        }
+        return Math.round(parsed);
+    }
+
+    /**
+     * Find a unit of the given kind (any kind if NONE).
+     *
+     * @return index of the unit, -1 if missing
+     */
+    private static int find(CharSequence text, int start, int end, int kind) {
+        for (int u = 0; u < UNITS.length; u++) {
+            String unit = UNITS[u];
+
+            if ((kind == NONE || KINDS[u] == kind) && unit.length() == end - start) {
+                int k = 0;
+
+                while (k < unit.length() && unit.charAt(k) == text.charAt(start + k)) {
+                    k++;
+                }
+                if (k == unit.length()) {
+                    return u;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(CharSequence text, int i, int length) {
+        while (i < length && isSpace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,215 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Rolls up values per series into fixed time windows (count, sum, min, max and mean of each field).
+ *
+ * Series are spread over lock stripes so that concurrent writers rarely contend. A window
+ * closes one window length after its end (to let late messages in), after which it's
+ * drained as a single point timestamped at the start of the window. Messages falling into
+ * an already drained window are dropped as they would overwrite the point written for it.
+ */
+final class PointAggregator {
+    private static final String[] SUFFIXES = { "_count", "_max", "_mean", "_min", "_sum" };
+
+    private final long _windowMillis;
+    private final String _measurement;
+    private final String[] _tags;
+    private final String[][] _fields;
+    private final Stripe[] _stripes;
+
+    private volatile long _watermark = Long.MIN_VALUE;
+
+
+    /**
+     * @param tags tag keys of the series, sorted by name
+     * @param fields field keys to aggregate
+     */
+    PointAggregator(long windowMillis, String measurement, String[] tags, String[] fields) {
+        this._windowMillis = windowMillis;
+        this._measurement = measurement;
+        this._tags = tags;
+        this._fields = new String[fields.length][SUFFIXES.length];
+        for (int i = 0; i < fields.length; i++) {
+            for (int j = 0; j < SUFFIXES.length; j++) {
+                this._fields[i][j] = fields[i] + SUFFIXES[j];
+            }
+        }
+
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+
+        this._stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this._stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Add the values of a message to the window of its series.
+     *
+     * @param tags tag values (null if missing), in the order of the tag keys
+     * @param values field values (null if missing), in the order of the field keys
+     * @return false if the message is too late for its window
+     */
+    boolean add(long timestamp, String[] tags, Object[] values) {
+        Series series = new Series(Math.floorDiv(timestamp, this._windowMillis) * this._windowMillis, tags);
+        Stripe stripe = this._stripes[series._hash & (this._stripes.length - 1)];
+
+        synchronized (stripe) {
+            if (series._window < this._watermark) {
+                return false;
+            }
+
+            Accumulator accumulator = stripe._windows.get(series);
+
+            if (accumulator == null) {
+                accumulator = new Accumulator(this._fields.length);
+                stripe._windows.put(series, accumulator);
+            }
+            for (int i = 0; i < values.length; i++) {
+                accumulator.add(i, values[i]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encode all windows closed at the given time (or all of them if forced) and forget about them.
+     *
+     * @return number of points encoded
+     */
+    int drain(long now, boolean force, LineProtocolEncoder encoder) {
+        long limit = force ? Long.MAX_VALUE : now - this._windowMillis;
+        List<Map.Entry<Series, Accumulator>> closed = new ArrayList<Map.Entry<Series, Accumulator>>();
+
+        if (!force) {
+            this._watermark = Math.max(this._watermark, Math.floorDiv(limit, this._windowMillis) * this._windowMillis);
+        }
+        for (Stripe stripe : this._stripes) {
+            synchronized (stripe) {
+                Iterator<Map.Entry<Series, Accumulator>> it = stripe._windows.entrySet().iterator();
+
+                while (it.hasNext()) {
+                    Map.Entry<Series, Accumulator> entry = it.next();
+
+                    if (entry.getKey()._window <= limit - this._windowMillis) {
+                        closed.add(entry);
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        int count = 0;
+
+        for (Map.Entry<Series, Accumulator> entry : closed) {
+            Series series = entry.getKey();
+            Accumulator accumulator = entry.getValue();
+
+            encoder.beginLine(this._measurement);
+            for (int i = 0; i < this._tags.length; i++) {
+                encoder.tag(this._tags[i], series._tags[i]);
+            }
+            for (int i = 0; i < this._fields.length; i++) {
+                long n = accumulator._count[i];
+
+                if (n > 0) {
+                    encoder.field(this._fields[i][0], n);
+                    encoder.field(this._fields[i][1], accumulator._max[i]);
+                    encoder.field(this._fields[i][2], accumulator._sum[i] / n);
+                    encoder.field(this._fields[i][3], accumulator._min[i]);
+                    encoder.field(this._fields[i][4], accumulator._sum[i]);
+                }
+            }
+            if (encoder.endLine(series._window)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Stripe {
+        private final Map<Series, Accumulator> _windows = new HashMap<Series, Accumulator>();
+    }
+
+    private static final class Series {
+        private final long _window;
+        private final String[] _tags;
+        private final int _hash;
+
+        Series(long window, String[] tags) {
+            for (int i = 0; i < tags.length; i++) {
+                if (tags[i] != null && tags[i].isEmpty()) {
+                    tags[i] = null;
+                }
+            }
+            this._window = window;
+            this._tags = tags;
+
+            int hash = 31 * Long.hashCode(window) + Arrays.hashCode(tags);
+
+            this._hash = hash ^ (hash >>> 16);
+        }
+
+        @Override
+        public int hashCode() {
+            return this._hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Series)) {
+                return false;
+            }
+
+            Series series = (Series)other;
+
+            return this._window == series._window && Arrays.equals(this._tags, series._tags);
+        }
+    }
+
+    private static final class Accumulator {
+        private final long[] _count;
+        private final double[] _sum;
+        private final double[] _min;
+        private final double[] _max;
+
+        Accumulator(int fields) {
+            this._count = new long[fields];
+            this._sum = new double[fields];
+            this._min = new double[fields];
+            this._max = new double[fields];
+            Arrays.fill(this._min, Double.POSITIVE_INFINITY);
+            Arrays.fill(this._max, Double.NEGATIVE_INFINITY);
+        }
+
+        /**
+         * Accumulate a numeric (or boolean) value, anything else is ignored.
+         */
+        void add(int i, Object value) {
+            double v;
+
+            if (value instanceof Number) {
+                v = ((Number)value).doubleValue();
+            } else if (value instanceof Boolean) {
+                v = ((Boolean)value).booleanValue() ? 1.0 : 0.0;
+            } else {
+                return;
+            }
+            if (Double.isNaN(v)) {
+                return;
+            }
+            this._count[i]++;
+            this._sum[i] += v;
+            this._min[i] = Math.min(this._min[i], v);
+            this._max[i] = Math.max(this._max[i], v);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.List;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.graylog2.plugin.Message;
+
+
+/**
+ * Builds the points of large batches on a bounded pool of threads.
+ *
+ * A batch of at least the threshold size is split into consecutive chunks, one per thread,
+ * the calling thread building the first one. Each chunk is encoded into its own encoder and
+ * the chunks are then concatenated in order, so the lines are the same as when building
+ * sequentially. When the pool is saturated (or stopped), chunks are built by the calling thread.
+ */
+final class PointBuildPool {
+    private final PointRouter _router;
+    private final int _threads;
+    private final int _threshold;
+    private final ThreadPoolExecutor _executor;
+
+    // chunk encoders of each calling thread, reused across batches
+    private final ThreadLocal<LineProtocolEncoder[]> _chunks;
+
+
+    /**
+     * @param threads number of threads building a batch, including the calling one
+     * @param threshold number of messages from which a batch is split
+     */
+    PointBuildPool(PointRouter router, int threads, int threshold) {
+        if (threads < 2) {
+            throw new IllegalArgumentException("Invalid point builder threads (" + threads + ")");
+        }
+        this._router = router;
+        this._threads = threads;
+        this._threshold = Math.max(threshold, threads);
+        this._executor = new ThreadPoolExecutor(
+            threads - 1, threads - 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 4),
+            new ThreadFactoryBuilder().setNameFormat("influxdb-build-%d").setDaemon(true).build(),
+            (task, executor) -> task.run()
+        );
+        this._chunks = ThreadLocal.withInitial(() -> {
+            LineProtocolEncoder[] chunks = new LineProtocolEncoder[threads];
+
+            // the calling thread builds the first chunk into the batch encoder
+            for (int i = 1; i < chunks.length; i++) {
+                chunks[i] = new LineProtocolEncoder();
+            }
+            return chunks;
+        });
+    }
+
+    /**
+     * Append the points of a batch to the encoder, counting the outcome of each message.
+     */
+    void buildPoints(LineProtocolEncoder encoder, List<Message> messages, String database, int[] outcomes) throws InterruptedException {
+        if (messages.size() < this._threshold) {
+            build(this._router, encoder, messages, database, outcomes);
+            return;
+        }
+
+        LineProtocolEncoder[] chunks = this._chunks.get();
+        int[][] counts = new int[this._threads][outcomes.length];
+        Future<?>[] futures = new Future<?>[this._threads];
+        int size = (messages.size() + this._threads - 1) / this._threads;
+
+        for (int i = 1; i < this._threads; i++) {
+            LineProtocolEncoder chunk = chunks[i];
+            List<Message> items = messages.subList(Math.min(i * size, messages.size()), Math.min((i + 1) * size, messages.size()));
+            int[] count = counts[i];
+
+            chunk.reset();
+            futures[i] = this._executor.submit(() -> build(this._router, chunk, items, database, count));
+        }
+        Throwable failure = null;
+
+        try {
+            build(this._router, encoder, messages.subList(0, size), database, outcomes);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // wait for every chunk, even after a failure, as the chunk encoders are reused
+        for (int i = 1; i < this._threads; i++) {
+            try {
+                futures[i].get();
+            } catch (ExecutionException e) {
+                failure = failure != null ? failure : e.getCause();
+            } catch (InterruptedException e) {
+                // chunks may still be written to, don't reuse them
+                this._chunks.remove();
+                throw e;
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure != null) {
+            throw new IllegalStateException("Point builder error (" + failure + ")", failure);
+        }
+        for (int i = 1; i < this._threads; i++) {
+            encoder.append(chunks[i]);
+            for (int j = 0; j < outcomes.length; j++) {
+                outcomes[j] += counts[i][j];
+            }
+        }
+    }
+
+    void close() {
+        this._executor.shutdown();
+    }
+
+    private static void build(PointRouter router, LineProtocolEncoder encoder, List<Message> messages, String database, int[] outcomes) {
+        for (Message message : messages) {
+            outcomes[router.buildPoints(encoder, message, database).ordinal()]++;
+        }
+    }
+}
@@ -0,0 +1,741 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.graylog2.plugin.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Turns messages into points according to the filters, tags and fields of an output.
+ */
+final class PointBuilder {
+    /**
+     * What became of a message, by order of precedence when several rules apply.
+     */
+    enum Outcome {
+        WRITTEN,
+        LATE,
+        EMPTY,
+        SAMPLED,
+        FILTERED,
+    }
+
+    private static final String TAG_SOURCE = "source";
+
+    // type prefix with an optional unit, eg. "D:", "I[ms]:"
+    private static final Pattern TYPE_PREFIX = Pattern.compile("^([BILFDST])(?:\\[([^\\]]*)\\])?:");
+
+    /** Mapped value of a field whose value couldn't be parsed. */
+    private static final Object INVALID = new Object();
+
+    private static final Logger LOG = LoggerFactory.getLogger(PointBuilder.class);
+
+    private final String measurement;
+    private final FilterPlan filters;
+    private final String[] tags;
+    private final String[] fields;
+    private final FieldMapper[][] mappers;
+    private final SeriesCache series;
+    private final CardinalityGuard guard;
+    private final PointSampler sampler;
+    private final FieldSchema schema;
+    private final int weightIndex;
+    private final LongAdder invalid = new LongAdder();
+
+
+    /**
+     * @param seriesCacheSize number of encoded series keys to cache (0 to disable)
+     * @param tagLimit maximum number of distinct values per tag over the window (0 to disable)
+     * @param tagWindowMillis length of the window over which distinct tag values are counted
+     * @param sampler sampler of the messages (null to keep all of them)
+     * @param typeConflict what to do with field values of another type than the known one (null to write them as is)
+     */
+    PointBuilder(String measurement, List<String> filters, List<String> tags, List<String> fields, int seriesCacheSize, int tagLimit, long tagWindowMillis, CardinalityGuard.Overflow tagOverflow, PointSampler sampler, FieldSchema.Conflict typeConflict) {
+        this.measurement = measurement;
+
+        List<FieldMatcher> matchers = new ArrayList<FieldMatcher>();
+        List<String> labels = new ArrayList<String>();
+
+        for (String item : filters) {
+            matchers.add(buildMatcher(item));
+            labels.add(item.trim());
+        }
+        this.filters = new FilterPlan(matchers, labels);
+
+        // tags and fields are kept sorted by key, as expected by the line protocol encoder
+        Set<String> tagSet = new TreeSet<String>();
+
+        tagSet.add(TAG_SOURCE);
+        for (String item : tags) {
+            tagSet.add(item.trim());
+        }
+        this.tags = tagSet.toArray(new String[tagSet.size()]);
+
+        Map<String, List<FieldMapper>> mappers = new TreeMap<String, List<FieldMapper>>();
+
+        for (String item : fields) {
+            FieldMapper mapper = buildMapper(item);
+
+            mappers.computeIfAbsent(mapper.field(), key -> new ArrayList<FieldMapper>()).add(mapper);
+        }
+        this.fields = mappers.keySet().toArray(new String[mappers.size()]);
+        this.mappers = new FieldMapper[this.fields.length][];
+        for (int i = 0; i < this.fields.length; i++) {
+            List<FieldMapper> items = mappers.get(this.fields[i]);
+
+            this.mappers[i] = items.toArray(new FieldMapper[items.size()]);
+        }
+        this.series = seriesCacheSize > 0 ? new SeriesCache(seriesCacheSize) : null;
+        this.guard = tagLimit > 0 ? new CardinalityGuard(this.tags, tagLimit, tagWindowMillis, tagOverflow) : null;
+
+        // the weight of sampled points goes at its sorted place among the fields
+        if (sampler != null && mappers.containsKey(PointSampler.WEIGHT_FIELD)) {
+            throw new IllegalArgumentException("Sample weight field error (" + PointSampler.WEIGHT_FIELD + " is already a field of " + measurement + ")");
+        }
+        this.sampler = sampler;
+        this.weightIndex = sampler != null ? -Arrays.binarySearch(this.fields, PointSampler.WEIGHT_FIELD) - 1 : -1;
+        this.schema = typeConflict != null ? new FieldSchema(measurement, this.fields, typeConflict) : null;
+    }
+
+    String measurement() {
+        return this.measurement;
+    }
+
+    /**
+     * Tag keys, sorted.
+     */
+    String[] tags() {
+        return this.tags;
+    }
+
+    /**
+     * Field keys, sorted.
+     */
+    String[] fields() {
+        return this.fields;
+    }
+
+    /**
+     * Filters, in their current order of evaluation.
+     */
+    FilterPlan filters() {
+        return this.filters;
+    }
+
+    /**
+     * Cache of encoded series keys (null if disabled).
+     */
+    SeriesCache series() {
+        return this.series;
+    }
+
+    /**
+     * Guard of tag cardinality (null if disabled).
+     */
+    CardinalityGuard guard() {
+        return this.guard;
+    }
+
+    /**
+     * Sampler of the messages (null if disabled).
+     */
+    PointSampler sampler() {
+        return this.sampler;
+    }
+
+    /**
+     * Known field types (null if disabled).
+     */
+    FieldSchema schema() {
+        return this.schema;
+    }
+
+    /**
+     * Number of field values which couldn't be parsed so far.
+     */
+    long invalid() {
+        return this.invalid.sum();
+    }
+
+    /**
+     * Check whether a message matches all filters.
+     */
+    private boolean matches(Map<String, Object> fields) {
+        return this.filters.matches(fields);
+    }
+
+    /**
+     * Map the value of the i-th field, when several mappers target the same field the last one yielding a value wins.
+     *
+     * Values which can't be parsed are counted and skipped.
+     */
+    private Object mapField(Map<String, Object> fields, int i) {
+        Object value = fields.get(this.fields[i]);
+
+        for (int j = this.mappers[i].length - 1; j >= 0; j--) {
+            Object mapped = this.mappers[i][j].map(value);
+
+            if (mapped == INVALID) {
+                this.invalid.increment();
+            } else if (mapped != null) {
+                return mapped;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append the line protocol of a message to the encoder if it matches all filters.
+     *
+     * Sampling happens right after the filters, before paying for the tags and fields of the
+     * messages it drops.
+     *
+     * @param database database the point is written to, whose field types apply
+     * @return WRITTEN, or FILTERED / SAMPLED / EMPTY if the message was filtered out, sampled out or didn't yield any value
+     */
+    Outcome buildPoint(LineProtocolEncoder encoder, Message message, String database) {
+        Map<String, Object> fields = message.getFields();
+
+        if (!this.matches(fields)) {
+            return Outcome.FILTERED;
+        }
+
+        Object[] tags = this.tagValues(fields);
+
+        if (this.sampler != null && !this.sampler.keep(this.measurement, tags, fields.get(this.sampler.field()))) {
+            return Outcome.SAMPLED;
+        }
+        this.guardTags(tags);
+        if (this.series != null) {
+            this.beginSeries(encoder, tags);
+        } else {
+            this.encodeSeries(encoder, tags);
+        }
+
+        FieldSchema.Types types = this.schema != null ? this.schema.types(database) : null;
+        boolean any = false;
+
+        for (int i = 0; i < this.fields.length; i++) {
+            if (i == this.weightIndex) {
+                encoder.field(PointSampler.WEIGHT_FIELD, this.sampler.weight());
+            }
+            if (this.schema != null) {
+                any |= this.schema.field(encoder, types, i, this.mapField(fields, i));
+            } else {
+                any |= encoder.field(this.fields[i], this.mapField(fields, i));
+            }
+        }
+        if (this.weightIndex == this.fields.length) {
+            encoder.field(PointSampler.WEIGHT_FIELD, this.sampler.weight());
+        }
+        if (!any) {
+            // the weight alone isn't a value
+            encoder.discardLine();
+        }
+        if (!encoder.endLine(message.getTimestamp().getMillis())) {
+          LOG.debug("InfluxDB output matched but no value extracted (" + message + ")");
+          return Outcome.EMPTY;
+        }
+        return Outcome.WRITTEN;
+    }
+
+    /**
+     * Get the raw tag values of a message (null if missing).
+     */
+    private Object[] tagValues(Map<String, Object> fields) {
+        Object[] values = new Object[this.tags.length];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fields.get(this.tags[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Check tag values against the cardinality guard.
+     */
+    private void guardTags(Object[] values) {
+        if (this.guard != null) {
+            this.guard.apply(values, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Start a line with the cached series key of the tag values, encoding and caching it on a miss.
+     */
+    private void beginSeries(LineProtocolEncoder encoder, Object[] values) {
+        SeriesCache.Key key = new SeriesCache.Key(values);
+        byte[] series = this.series.get(key);
+
+        if (series != null) {
+            encoder.beginLine(series);
+        } else {
+            this.encodeSeries(encoder, values);
+            this.series.put(key, encoder.series());
+        }
+    }
+
+    private void encodeSeries(LineProtocolEncoder encoder, Object[] values) {
+        encoder.beginLine(this.measurement);
+        for (int i = 0; i < this.tags.length; i++) {
+            if (values[i] != null) {
+                encoder.tag(this.tags[i], String.valueOf(values[i]));
+            }
+        }
+    }
+
+    /**
+     * Add the values of a message to its aggregation window if it matches all filters.
+     *
+     * @return WRITTEN, or FILTERED / LATE if the message was filtered out or arrived after its window was written
+     */
+    Outcome aggregatePoint(PointAggregator aggregator, Message message) {
+        Map<String, Object> fields = message.getFields();
+
+        if (!this.matches(fields)) {
+            return Outcome.FILTERED;
+        }
+
+        Object[] raw = this.tagValues(fields);
+
+        this.guardTags(raw);
+
+        String[] tags = new String[raw.length];
+        Object[] values = new Object[this.fields.length];
+
+        for (int i = 0; i < tags.length; i++) {
+            if (raw[i] != null) {
+                tags[i] = String.valueOf(raw[i]);
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = this.mapField(fields, i);
+        }
+        if (!aggregator.add(message.getTimestamp().getMillis(), tags, values)) {
+            LOG.debug("InfluxDB output dropped message after its window was closed (" + message + ")");
+            return Outcome.LATE;
+        }
+        return Outcome.WRITTEN;
+    }
+
+    static FieldMatcher buildMatcher(String source) {
+        source = source.trim();
+        if (source.length() == 0) {
+            throw new IllegalArgumentException("Matcher source is empty");
+        }
+        if (source.indexOf("!=") > 0) {
+            String key = source.substring(0, source.indexOf("!=")).trim();
+            String value = source.substring(source.indexOf("!=") + 2).trim();
+
+            return new StringFieldMatcher(key, true, value, true);
+        }
+        if (source.indexOf('=') > 0) {
+            String key = source.substring(0, source.indexOf('=')).trim();
+            String value = source.substring(source.indexOf('=') + 1).trim();
+
+            return new StringFieldMatcher(key, false, value, true);
+        }
+        if (source.indexOf("!~") > 0) {
+            String key = source.substring(0, source.indexOf("!~")).trim();
+            String value = source.substring(source.indexOf("!~") + 2).trim();
+
+            return new RegexFieldMatcher(key, true, value, 0);
+        }
+        if (source.indexOf('~') > 0) {
+            String key = source.substring(0, source.indexOf('~')).trim();
+            String value = source.substring(source.indexOf('~') + 1).trim();
+
+            return new RegexFieldMatcher(key, false, value, 0);
+        }
+        if (source.startsWith("!")) {
+            return new ConstantFieldMatcher(source.substring(1), true);
+        }
+        return new ConstantFieldMatcher(source, false);
+    }
+
+    private static FieldMapper buildMapper(String source) {
+        source = source.trim();
+        if (source.length() == 0) {
+            throw new IllegalArgumentException("Mapper source is empty");
+        }
+
+        FieldType type = FieldType.DOUBLE;
+        NumberParser parser = NumberParser.PLAIN;
+        Matcher prefix = TYPE_PREFIX.matcher(source);
+
+        if (prefix.find()) {
+            switch (prefix.group(1)) {
+            case "B":
+                type = FieldType.BOOLEAN;
+                break;
+            case "I":
+            case "L":
+                type = FieldType.LONG;
+                break;
+            case "S":
+            case "T":
+                type = FieldType.STRING;
+                break;
+            default:
+                type = FieldType.DOUBLE;
+                break;
+            }
+            if (prefix.group(2) != null) {
+                try {
+                    parser = new NumberParser(prefix.group(2).trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Mapper unit error (" + e + ")", e);
+                }
+            }
+            source = source.substring(prefix.end());
+        }
+        if (source.indexOf('=') > 0 || source.indexOf('~') > 0) {
+            try {
+                return new BooleanFieldMapper(type, parser, buildMatcher(source));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Boolean mapper error (" + e + ")", e);
+            }
+        }
+        return new IdentityFieldMapper(type, parser, source);
+    }
+
+    static interface FieldMatcher {
+        String field();
+        boolean match(Object value);
+    }
+
+    private static abstract class AbstractFieldMatcher implements FieldMatcher {
+        private final String _field;
+        private final boolean _negate;
+
+        AbstractFieldMatcher(String field, boolean negate) {
+            this._field = field;
+            this._negate = negate;
+        }
+
+        public final String field() {
+            return this._field;
+        }
+
+        public final boolean match(Object value) {
+            return this._negate ? !this.matchImpl(value) : this.matchImpl(value);
+        }
+
+        abstract boolean matchImpl(Object value);
+    }
+
+    private static class ConstantFieldMatcher extends AbstractFieldMatcher {
+        ConstantFieldMatcher(String field, boolean negate) {
+            super(field, negate);
+        }
+
+        boolean matchImpl(Object value) {
+            return value != null;
+        }
+    }
+
+    private static class StringFieldMatcher extends AbstractFieldMatcher {
+        private final String _value;
+        private final boolean _caseSensitive;
+
+        StringFieldMatcher(String field, boolean negate, String value, boolean caseSensitive) {
+            super(field, negate);
+            this._value = value;
+            this._caseSensitive = caseSensitive;
+        }
+
+        boolean matchImpl(Object value) {
+            if (value == null) {
+                return false;
+            }
+            return this._caseSensitive ? this._value.equals(String.valueOf(value)) : this._value.equalsIgnoreCase(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Full match of a regular expression.
+     *
+     * Plain literals and alternations of literals (eg. {@code INFO|WARN}) are matched by set
+     * lookup without involving the regex engine. Other patterns remember the result for the
+     * most recently matched short values, spread over lock stripes each evicting its least
+     * recently used entry, which covers low-cardinality fields.
+     */
+    static final class RegexFieldMatcher extends AbstractFieldMatcher {
+        private static final int CACHE_SIZE = 1024;
+        private static final int CACHE_STRIPES = 16;
+        private static final int CACHE_VALUE_LENGTH = 256;
+
+        private final Pattern _regex;
+        private final Set<String> _literals;
+        private final CacheStripe[] _cache;
+
+        RegexFieldMatcher(String field, boolean negate, String regex, int flags) {
+            super(field, negate);
+            this._regex = Pattern.compile(regex, flags);
+            this._literals = flags == 0 ? literals(regex) : null;
+            if (this._literals == null) {
+                this._cache = new CacheStripe[CACHE_STRIPES];
+                for (int i = 0; i < CACHE_STRIPES; i++) {
+                    this._cache[i] = new CacheStripe(CACHE_SIZE / CACHE_STRIPES);
+                }
+            } else {
+                this._cache = null;
+            }
+        }
+
+        boolean matchImpl(Object value) {
+            if (value == null) {
+                return false;
+            }
+
+            String text = String.valueOf(value);
+
+            if (this._literals != null) {
+                return this._literals.contains(text);
+            }
+
+            if (text.length() > CACHE_VALUE_LENGTH) {
+                return this._regex.matcher(text).matches();
+            }
+
+            int hash = text.hashCode();
+            CacheStripe stripe = this._cache[(hash ^ (hash >>> 16)) & (CACHE_STRIPES - 1)];
+            Boolean result;
+
+            synchronized (stripe) {
+                result = stripe.get(text);
+            }
+            if (result == null) {
+                result = this._regex.matcher(text).matches();
+                synchronized (stripe) {
+                    stripe.put(text, result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Whether the pattern is matched by set lookup.
+         */
+        boolean isLiteral() {
+            return this._literals != null;
+        }
+
+        /**
+         * Number of values whose result is remembered.
+         */
+        int cacheSize() {
+            int size = 0;
+
+            for (CacheStripe stripe : this._cache) {
+                synchronized (stripe) {
+                    size += stripe.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Get the strings fully matched by a pattern made of literals, optionally in a group and separated by |.
+         *
+         * @return null if the pattern is anything else
+         */
+        private static Set<String> literals(String regex) {
+            int start = 0;
+            int end = regex.length();
+
+            if (start < end && regex.charAt(start) == '^') {
+                start++;
+            }
+            if (end > start && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+                end--;
+            }
+            if (regex.startsWith("(?:", start) && end > start + 3 && regex.charAt(end - 1) == ')' && !isEscaped(regex, end - 1)) {
+                start += 3;
+                end--;
+            } else if (regex.startsWith("(", start) && !regex.startsWith("(?", start) && end > start + 1 && regex.charAt(end - 1) == ')' && !isEscaped(regex, end - 1)) {
+                start++;
+                end--;
+            }
+
+            Set<String> literals = new HashSet<String>();
+            StringBuilder literal = new StringBuilder();
+
+            for (int i = start; i < end; i++) {
+                char c = regex.charAt(i);
+
+                if (c == '\\') {
+                    // only escaped punctuation is literal, \d, \Q, \1... are not
+                    if (i + 1 >= end || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        return null;
+                    }
+                    literal.append(regex.charAt(++i));
+                } else if (c == '|') {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                } else if ("^$.?*+()[]{}".indexOf(c) >= 0) {
+                    return null;
+                } else {
+                    literal.append(c);
+                }
+            }
+            literals.add(literal.toString());
+            return literals;
+        }
+
+        private static boolean isEscaped(String regex, int i) {
+            int backslashes = 0;
+
+            while (i - backslashes > 0 && regex.charAt(i - backslashes - 1) == '\\') {
+                backslashes++;
+            }
+            return backslashes % 2 == 1;
+        }
+
+        private static final class CacheStripe extends LinkedHashMap<String, Boolean> {
+            private static final long serialVersionUID = 1L;
+
+            private final int _capacity;
+
+            CacheStripe(int capacity) {
+                super(16, 0.75f, true);
+                this._capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return this.size() > this._capacity;
+            }
+        }
+    }
+
+    private static enum FieldType {
+        BOOLEAN,
+        LONG,
+        DOUBLE,
+        STRING,
+    }
+
+    private static interface FieldMapper {
+        FieldType type();
+        String field();
+        Object map(Object value);
+    }
+
+    /**
+     * Converts the value of a field to its type.
+     *
+     * Text is parsed without allocating or throwing, with an optional unit suffix converted to
+     * the unit of the mapper. Text which isn't a number maps to {@link PointBuilder#INVALID}.
+     */
+    private static abstract class AbstractFieldMapper implements FieldMapper {
+        private final FieldType _type;
+        private final NumberParser _parser;
+        private final String _field;
+
+        AbstractFieldMapper(FieldType type, NumberParser parser, String field) {
+            this._type = type;
+            this._parser = parser;
+            this._field = field;
+        }
+
+        public final FieldType type() {
+            return this._type;
+        }
+
+        public final String field() {
+            return this._field;
+        }
+
+        public final Object map(Object value) {
+            value = this.mapImpl(value);
+            switch (this._type) {
+            case BOOLEAN:
+                if (value instanceof Boolean) {
+                    return ((Boolean)value).booleanValue();
+                } else if (value instanceof Number) {
+                    return ((Number)value).doubleValue() != 0.0;
+                } else if (value != null) {
+                    return Boolean.parseBoolean(String.valueOf(value));
+                }
+                return null;
+
+            case LONG:
+                if (value instanceof Boolean) {
+                    return ((Boolean)value).booleanValue() ? 1L : 0L;
+                } else if (value instanceof Number) {
+                    return ((Number)value).longValue();
+                } else if (value != null) {
+                    Long parsed = this._parser.parseLong(text(value));
+
+                    return parsed != null ? parsed : INVALID;
+                }
+                return null;
+
+            case DOUBLE:
+                if (value instanceof Boolean) {
+                    return ((Boolean)value).booleanValue() ? 1.0 : 0.0;
+                } else if (value instanceof Number) {
+                    return ((Number)value).doubleValue();
+                } else if (value != null) {
+                    double parsed = this._parser.parse(text(value));
+
+                    return !Double.isNaN(parsed) ? (Object)parsed : INVALID;
+                }
+                return null;
+
+            case STRING:
+                if (value != null) {
+                    return String.valueOf(value);
+                }
+                return null;
+            }
+            throw new IllegalStateException("Unsupported field type (" + this._type + ")");
+        }
+
+        abstract Object mapImpl(Object value);
+
+        private static CharSequence text(Object value) {
+            return value instanceof CharSequence ? (CharSequence)value : String.valueOf(value);
+        }
+    }
+
+    private static class IdentityFieldMapper extends AbstractFieldMapper {
+        IdentityFieldMapper(FieldType type, NumberParser parser, String field) {
+            super(type, parser, field);
+        }
+
+        Object mapImpl(Object value) {
+            return value;
+        }
+    }
+
+    private static class BooleanFieldMapper extends AbstractFieldMapper {
+        private final FieldMatcher _matcher;
+
+        BooleanFieldMapper(FieldType type, NumberParser parser, FieldMatcher matcher) {
+            super(type, parser, matcher.field());
+            this._matcher = matcher;
+        }
+
+        Object mapImpl(Object value) {
+            return this._matcher.match(value) ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.graylog2.plugin.Message;
+
+import org.tmsrv.graylog.influxdb.PointBuilder.FieldMatcher;
+import org.tmsrv.graylog.influxdb.PointBuilder.Outcome;
+
+
+/**
+ * Routes messages to several rules (measurement with its own filters, tags and fields) in a single pass.
+ *
+ * Filters used by more than one rule are evaluated once per message, each rule then only
+ * evaluates its own filters. Points of all rules are appended to the same encoder, hence
+ * written in the same batch.
+ */
+final class PointRouter {
+    private static final int MAX_SHARED_FILTERS = 64;
+
+    private final PointBuilder[] _builders;
+    private final FieldMatcher[] _shared;
+    private final long[] _required;
+    private final PointAggregator[] _aggregators;
+
+
+    /**
+     * @param aggregateWindowMillis length of aggregation windows (0 to write a point per message)
+     * @param sampler sampler of the messages written as points (null to keep all of them)
+     * @param typeConflict what to do with field values of another type than the known one (null to write them as is)
+     */
+    PointRouter(List<Rule> rules, int seriesCacheSize, int tagLimit, long tagWindowMillis, CardinalityGuard.Overflow tagOverflow, long aggregateWindowMillis, PointSampler sampler, FieldSchema.Conflict typeConflict) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (Rule rule : rules) {
+            for (String filter : rule._filters) {
+                counts.merge(filter, 1, Integer::sum);
+            }
+        }
+
+        Map<String, Integer> shared = new LinkedHashMap<String, Integer>();
+
+        for (Rule rule : rules) {
+            for (String filter : rule._filters) {
+                if (counts.get(filter) > 1 && !shared.containsKey(filter) && shared.size() < MAX_SHARED_FILTERS) {
+                    shared.put(filter, shared.size());
+                }
+            }
+        }
+        this._shared = new FieldMatcher[shared.size()];
+        for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+            this._shared[entry.getValue()] = PointBuilder.buildMatcher(entry.getKey());
+        }
+
+        this._builders = new PointBuilder[rules.size()];
+        this._required = new long[rules.size()];
+        for (int i = 0; i < this._builders.length; i++) {
+            Rule rule = rules.get(i);
+            List<String> filters = new ArrayList<String>();
+
+            for (String filter : rule._filters) {
+                Integer index = shared.get(filter);
+
+                if (index != null) {
+                    this._required[i] |= 1L << index;
+                } else {
+                    filters.add(filter);
+                }
+            }
+            this._builders[i] = new PointBuilder(rule._measurement, filters, rule._tags, rule._fields, seriesCacheSize, tagLimit, tagWindowMillis, tagOverflow, sampler, typeConflict);
+        }
+
+        if (aggregateWindowMillis > 0) {
+            this._aggregators = new PointAggregator[this._builders.length];
+            for (int i = 0; i < this._builders.length; i++) {
+                PointBuilder builder = this._builders[i];
+
+                this._aggregators[i] = new PointAggregator(aggregateWindowMillis, builder.measurement(), builder.tags(), builder.fields());
+            }
+        } else {
+            this._aggregators = null;
+        }
+    }
+
+    PointBuilder[] builders() {
+        return this._builders;
+    }
+
+    boolean isAggregating() {
+        return this._aggregators != null;
+    }
+
+    /**
+     * Append the points of a message for all rules it matches.
+     *
+     * @param database database the points are written to
+     * @return WRITTEN if any rule yielded a point, otherwise EMPTY / SAMPLED if any rule matched, otherwise FILTERED
+     */
+    Outcome buildPoints(LineProtocolEncoder encoder, Message message, String database) {
+        long passed = this.shared(message.getFields());
+        Outcome outcome = Outcome.FILTERED;
+
+        for (int i = 0; i < this._builders.length; i++) {
+            if ((passed & this._required[i]) == this._required[i]) {
+                outcome = merge(outcome, this._builders[i].buildPoint(encoder, message, database));
+            }
+        }
+        return outcome;
+    }
+
+    /**
+     * Add the values of a message to the aggregation windows of all rules it matches.
+     *
+     * @return WRITTEN if any rule aggregated it, otherwise LATE if any rule was too late for it, otherwise FILTERED
+     */
+    Outcome aggregatePoints(Message message) {
+        long passed = this.shared(message.getFields());
+        Outcome outcome = Outcome.FILTERED;
+
+        for (int i = 0; i < this._builders.length; i++) {
+            if ((passed & this._required[i]) == this._required[i]) {
+                outcome = merge(outcome, this._builders[i].aggregatePoint(this._aggregators[i], message));
+            }
+        }
+        return outcome;
+    }
+
+    /**
+     * Encode the closed aggregation windows of all rules (or all of them if forced).
+     *
+     * @return number of points encoded
+     */
+    int drain(long now, boolean force, LineProtocolEncoder encoder) {
+        int count = 0;
+
+        for (PointAggregator aggregator : this._aggregators) {
+            count += aggregator.drain(now, force, encoder);
+        }
+        return count;
+    }
+
+    /**
+     * Evaluate the shared filters.
+     *
+     * @return bit mask of the filters which matched
+     */
+    private long shared(Map<String, Object> fields) {
+        long passed = 0;
+
+        for (int i = 0; i < this._shared.length; i++) {
+            if (this._shared[i].match(fields.get(this._shared[i].field()))) {
+                passed |= 1L << i;
+            }
+        }
+        return passed;
+    }
+
+    private static Outcome merge(Outcome a, Outcome b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    /**
+     * Build the rules of an output: the main one and the ones declared as "measurement filter|tag|field item".
+     *
+     * Items of a measurement are gathered into a single rule, items of the main measurement extend the main rule.
+     */
+    static List<Rule> rules(String measurement, List<String> filters, List<String> tags, List<String> fields, List<String> items) {
+        Map<String, Rule> rules = new LinkedHashMap<String, Rule>();
+
+        rules.put(measurement, new Rule(measurement, filters, tags, fields));
+        for (String item : items) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+
+            String[] parts = item.split("\\s+", 3);
+
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("Rule item error (" + item + ")");
+            }
+
+            Rule rule = rules.computeIfAbsent(parts[0], key -> new Rule(key, new ArrayList<String>(), new ArrayList<String>(), new ArrayList<String>()));
+
+            switch (parts[1]) {
+            case "filter":
+                rule._filters.add(parts[2].trim());
+                break;
+            case "tag":
+                rule._tags.add(parts[2].trim());
+                break;
+            case "field":
+                rule._fields.add(parts[2].trim());
+                break;
+            default:
+                throw new IllegalArgumentException("Rule item error (" + item + ", expected filter, tag or field)");
+            }
+        }
+        return new ArrayList<Rule>(rules.values());
+    }
+
+    static final class Rule {
+        private final String _measurement;
+        private final List<String> _filters;
+        private final List<String> _tags;
+        private final List<String> _fields;
+
+        Rule(String measurement, List<String> filters, List<String> tags, List<String> fields) {
+            this._measurement = measurement;
+            this._filters = new ArrayList<String>();
+            for (String filter : filters) {
+                this._filters.add(filter.trim());
+            }
+            this._tags = new ArrayList<String>(tags);
+            this._fields = new ArrayList<String>(fields);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.tmsrv.graylog.influxdb;
+
+
+/**
+ * Keeps a fraction of the messages, deciding on a hash of their series and of a message field.
+ *
+ * The decision only depends on the content of the message, so every Graylog node takes the
+ * same one for the same message. Kept points carry a weight field (the inverse of the rate)
+ * so that counts and sums can be scaled back up in queries.
+ */
+final class PointSampler {
+    static final String WEIGHT_FIELD = "sample_weight";
+
+    private static final long NULL_HASH = 0x9e3779b97f4a7c15L;
+
+    private final long _threshold;
+    private final String _field;
+    private final Double _weight;
+
+
+    /**
+     * @param rate fraction of the messages to keep, in (0, 1]
+     * @param field message field hashed along with the series (eg. the message id)
+     */
+    PointSampler(double rate, String field) {
+        if (!(rate > 0.0 && rate <= 1.0)) {
+            throw new IllegalArgumentException("Sample rate error (" + rate + ", expected a fraction in (0, 1])");
+        }
+        this._threshold = (long)(rate * (1L << 53));
+        this._field = field;
+        this._weight = 1.0 / rate;
+    }
+
+    /**
+     * Message field hashed along with the series.
+     */
+    String field() {
+        return this._field;
+    }
+
+    /**
+     * Weight of each kept point.
+     */
+    Double weight() {
+        return this._weight;
+    }
+
+    /**
+     * Decide whether to keep a message, from the raw values of its series and sample field.
+     */
+    boolean keep(String measurement, Object[] tags, Object value) {
+        long hash = Hash64.hash(measurement);
+
+        for (Object tag : tags) {
+            hash = Hash64.mix(hash ^ hash(tag));
+        }
+        hash = Hash64.mix(hash ^ hash(value));
+        // top 53 bits as a uniform fraction of 2^53
+        return (hash >>> 11) < this._threshold;
+    }
+
+    private static long hash(Object value) {
+        if (value == null) {
+            return NULL_HASH;
+        }
+        return Hash64.hash(value instanceof CharSequence ? (CharSequence)value : String.valueOf(value));
+    }
+}
@@ -0,0 +1,163 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded LRU cache of encoded series keys (measurement and escaped, sorted tags), by raw tag values.
+ *
+ * Entries are spread over lock stripes, each being an access-ordered map evicting its
+ * least recently used entry beyond its share of the capacity. Statistics are kept per
+ * stripe under its lock, so they come for free on the lookup path.
+ */
+final class SeriesCache {
+    private final Stripe[] _stripes;
+
+
+    /**
+     * @param capacity maximum number of series kept
+     */
+    SeriesCache(int capacity) {
+        int stripes = Integer.highestOneBit(Math.max(1, Math.min(capacity / 64, Runtime.getRuntime().availableProcessors() * 4) - 1)) << 1;
+
+        this._stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this._stripes[i] = new Stripe(Math.max(1, capacity / stripes));
+        }
+    }
+
+    /**
+     * Get the encoded series key of tag values.
+     *
+     * @return null if the series isn't cached
+     */
+    byte[] get(Key key) {
+        Stripe stripe = this.stripe(key);
+
+        synchronized (stripe) {
+            byte[] series = stripe.get(key);
+
+            if (series != null) {
+                stripe._hits++;
+            } else {
+                stripe._misses++;
+            }
+            return series;
+        }
+    }
+
+    void put(Key key, byte[] series) {
+        Stripe stripe = this.stripe(key);
+
+        synchronized (stripe) {
+            stripe.put(key, series);
+        }
+    }
+
+    /**
+     * Number of series cached.
+     */
+    int size() {
+        int size = 0;
+
+        for (Stripe stripe : this._stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    long hits() {
+        long hits = 0;
+
+        for (Stripe stripe : this._stripes) {
+            synchronized (stripe) {
+                hits += stripe._hits;
+            }
+        }
+        return hits;
+    }
+
+    long misses() {
+        long misses = 0;
+
+        for (Stripe stripe : this._stripes) {
+            synchronized (stripe) {
+                misses += stripe._misses;
+            }
+        }
+        return misses;
+    }
+
+    long evictions() {
+        long evictions = 0;
+
+        for (Stripe stripe : this._stripes) {
+            synchronized (stripe) {
+                evictions += stripe._evictions;
+            }
+        }
+        return evictions;
+    }
+
+    private Stripe stripe(Key key) {
+        return this._stripes[key._hash & (this._stripes.length - 1)];
+    }
+
+    /**
+     * Raw tag values of a message, in the order of the tag keys.
+     */
+    static final class Key {
+        private final Object[] _values;
+        private final int _hash;
+
+        Key(Object[] values) {
+            int hash = Arrays.hashCode(values);
+
+            this._values = values;
+            this._hash = hash ^ (hash >>> 16);
+        }
+
+        @Override
+        public int hashCode() {
+            return this._hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key)other;
+
+            return this._hash == key._hash && Arrays.equals(this._values, key._values);
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<Key, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int _capacity;
+        private long _hits;
+        private long _misses;
+        private long _evictions;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this._capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            if (this.size() > this._capacity) {
+                this._evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+}
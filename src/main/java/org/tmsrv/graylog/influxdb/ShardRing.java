@@ -0,0 +1,50 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Consistent hash ring assigning series to shards.
+ *
+ * Each shard owns a number of virtual nodes placed on the ring by hashing its name, so that
+ * adding or removing a shard only moves the series of its neighbours.
+ */
+final class ShardRing {
+    private static final int VIRTUAL_NODES = 160;
+
+    private final long[] _points;
+    private final int[] _shards;
+
+
+    ShardRing(String[] names) {
+        long[] points = new long[names.length * VIRTUAL_NODES];
+        Integer[] order = new Integer[points.length];
+
+        for (int i = 0; i < names.length; i++) {
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                points[i * VIRTUAL_NODES + j] = Hash64.hash(names[i] + "#" + j);
+                order[i * VIRTUAL_NODES + j] = i * VIRTUAL_NODES + j;
+            }
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> points[i]));
+        this._points = new long[points.length];
+        this._shards = new int[points.length];
+        for (int i = 0; i < order.length; i++) {
+            this._points[i] = points[order[i]];
+            this._shards[i] = order[i] / VIRTUAL_NODES;
+        }
+    }
+
+    /**
+     * Find the shard owning a series key.
+     */
+    int shard(byte[] data, int offset, int length) {
+        int i = Arrays.binarySearch(this._points, Hash64.hash(data, offset, length));
+
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return this._shards[i < this._shards.length ? i : 0];
+    }
+}
@@ -0,0 +1,158 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.function.Consumer;
+
+import java.util.regex.Pattern;
+
+import org.graylog2.plugin.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Picks the target (database and retention policy) of each message from its fields, with a fallback.
+ *
+ * Targets are cached by field values, so that resolving a known one doesn't allocate. As the
+ * values come from messages, only names matching the configured pattern are accepted and the
+ * number of distinct targets is bounded: messages naming another target, or a new one beyond
+ * the limit, go to the fallback, which is logged once.
+ */
+final class TargetResolver {
+    static final int MAX_TARGETS = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(TargetResolver.class);
+
+    // stands for a missing field in the cache
+    private static final Object MISSING = new Object();
+
+    private final String _databaseField;
+    private final String _retentionPolicyField;
+    private final Pattern _names;
+    private final WriteTarget _fallback;
+    private final Consumer<String> _discovered;
+    private final Map<Object, Map<Object, WriteTarget>> _targets = new ConcurrentHashMap<Object, Map<Object, WriteTarget>>();
+    private final Set<String> _databases = new HashSet<String>();
+    private int _count;
+    private boolean _overflowed;
+    private volatile boolean _rejected;
+
+
+    /**
+     * @param databaseField message field naming the database (null to always use the fallback one)
+     * @param retentionPolicyField message field naming the retention policy (null to always use the fallback one)
+     * @param names pattern which database and retention policy names from messages must match (null to accept none)
+     * @param discovered notified of each database targeted besides the fallback one (null if not needed)
+     */
+    TargetResolver(String databaseField, String retentionPolicyField, Pattern names, WriteTarget fallback, Consumer<String> discovered) {
+        this._databaseField = databaseField;
+        this._retentionPolicyField = retentionPolicyField;
+        this._names = names;
+        this._fallback = fallback;
+        this._discovered = discovered;
+        this._databases.add(fallback.database());
+    }
+
+    WriteTarget fallback() {
+        return this._fallback;
+    }
+
+    /**
+     * Check whether all messages go to the fallback target.
+     */
+    boolean isStatic() {
+        return this._databaseField == null && this._retentionPolicyField == null;
+    }
+
+    /**
+     * Get the target of a message.
+     */
+    WriteTarget resolve(Message message) {
+        if (this.isStatic()) {
+            return this._fallback;
+        }
+
+        Map<String, Object> fields = message.getFields();
+        Object database = this._databaseField != null ? fields.get(this._databaseField) : null;
+        Object retentionPolicy = this._retentionPolicyField != null ? fields.get(this._retentionPolicyField) : null;
+        Map<Object, WriteTarget> targets = this._targets.get(database != null ? database : MISSING);
+        WriteTarget target = targets != null ? targets.get(retentionPolicy != null ? retentionPolicy : MISSING) : null;
+
+        if (target != null) {
+            return target;
+        }
+        // rejected names aren't cached, as there may be any number of them
+        if (!this.isAllowed(database) || !this.isAllowed(retentionPolicy)) {
+            if (!this._rejected) {
+                this._rejected = true;
+                LOG.warn("InfluxDB output target isn't allowed, using " + this._fallback + " for it and other unknown ones (" + database + "." + retentionPolicy + ")");
+            }
+            return this._fallback;
+        }
+        return this.create(database, retentionPolicy);
+    }
+
+    /**
+     * Split messages by target, keeping their order within each target.
+     */
+    Map<WriteTarget, List<Message>> group(List<Message> messages) {
+        if (this.isStatic()) {
+            return Collections.singletonMap(this._fallback, messages);
+        }
+
+        Map<WriteTarget, List<Message>> groups = new LinkedHashMap<WriteTarget, List<Message>>();
+
+        for (Message message : messages) {
+            groups.computeIfAbsent(this.resolve(message), key -> new ArrayList<Message>()).add(message);
+        }
+        return groups;
+    }
+
+    private synchronized WriteTarget create(Object database, Object retentionPolicy) {
+        Map<Object, WriteTarget> targets = this._targets.computeIfAbsent(database != null ? database : MISSING, key -> new ConcurrentHashMap<Object, WriteTarget>());
+        WriteTarget target = targets.get(retentionPolicy != null ? retentionPolicy : MISSING);
+
+        if (target != null) {
+            return target;
+        }
+        if (this._count >= MAX_TARGETS) {
+            if (!this._overflowed) {
+                this._overflowed = true;
+                LOG.warn("InfluxDB output has too many targets, using " + this._fallback + " for new ones (" + database + "." + retentionPolicy + ")");
+            }
+            return this._fallback;
+        }
+        target = new WriteTarget(name(database, this._fallback.database()), name(retentionPolicy, this._fallback.retentionPolicy()));
+        targets.put(retentionPolicy != null ? retentionPolicy : MISSING, target);
+        this._count++;
+        if (this._databases.add(target.database()) && this._discovered != null) {
+            this._discovered.accept(target.database());
+        }
+        return target;
+    }
+
+    /**
+     * Check whether a name from a message can be used, missing or empty ones standing for the fallback.
+     */
+    private boolean isAllowed(Object value) {
+        String name = name(value, "");
+
+        return name.isEmpty() || this._names != null && this._names.matcher(name).matches();
+    }
+
+    private static String name(Object value, String fallback) {
+        String name = value != null ? String.valueOf(value).trim() : "";
+
+        return !name.isEmpty() ? name : fallback;
+    }
+}
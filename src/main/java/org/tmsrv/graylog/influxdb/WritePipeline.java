@@ -0,0 +1,426 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounded queue of encoded lines between the output and a pool of writer threads.
+ *
+ * Writers take queued chunks until a batch is full or has waited long enough (linger), and
+ * write them as a single request. Each chunk is bound to a target (database and retention
+ * policy), a batch only gathers chunks of the target of the oldest one. The size of batches is adapted to the server by a
+ * {@link BatchController}: a chunk larger than a batch is taken in parts, split at line
+ * boundaries. The queue is bounded by number of points, what happens when it's full depends
+ * on the overflow policy.
+ */
+final class WritePipeline implements Closeable {
+    enum OverflowPolicy {
+        /** Wait for room in the queue, pushing back on the caller. */
+        BLOCK,
+        /** Drop the oldest queued chunks to make room. */
+        DROP_OLDEST,
+        /** Drop the chunk being submitted. */
+        DROP_NEWEST,
+        /** Divert the chunk being submitted to the spill handler (eg. the spool). */
+        SPILL,
+    }
+
+    /**
+     * Destination of the batches.
+     */
+    interface Writer {
+        void write(WriteTarget target, byte[] data, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Handler of chunks which don't fit in the queue (SPILL policy) or remain after closing.
+     */
+    interface Spill {
+        void spill(WriteTarget target, byte[] data);
+    }
+
+    /**
+     * Tuning of a pipeline.
+     */
+    static final class Settings {
+        private final int _capacity;
+        private final int _batchSize;
+        private final long _lingerMillis;
+        private final int _threads;
+        private final OverflowPolicy _policy;
+        private final long _targetLatencyMillis;
+        private final int _retries;
+        private final long _backoffMillis;
+
+        /**
+         * @param capacity maximum number of queued points
+         * @param batchSize maximum number of points above which a batch is written without waiting
+         * @param lingerMillis maximum time a batch waits to be filled
+         * @param threads number of writer threads
+         * @param targetLatencyMillis write latency above which batches shrink (0 to keep their size fixed)
+         * @param retries number of retries of a write failing because of the server
+         * @param backoffMillis bound of the delay before the first retry
+         */
+        Settings(int capacity, int batchSize, long lingerMillis, int threads, OverflowPolicy policy, long targetLatencyMillis, int retries, long backoffMillis) {
+            if (capacity <= 0 || batchSize <= 0 || lingerMillis < 0 || threads <= 0 || targetLatencyMillis < 0 || retries < 0 || backoffMillis < 0) {
+                throw new IllegalArgumentException("Invalid write pipeline settings (capacity " + capacity + ", batch size " + batchSize + ", linger " + lingerMillis + "ms, threads " + threads + ", target latency " + targetLatencyMillis + "ms, retries " + retries + ", backoff " + backoffMillis + "ms)");
+            }
+            this._capacity = capacity;
+            this._batchSize = batchSize;
+            this._lingerMillis = lingerMillis;
+            this._threads = threads;
+            this._policy = policy;
+            this._targetLatencyMillis = targetLatencyMillis;
+            this._retries = retries;
+            this._backoffMillis = backoffMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this._capacity, this._batchSize, this._lingerMillis, this._threads, this._policy, this._targetLatencyMillis, this._retries, this._backoffMillis);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Settings)) {
+                return false;
+            }
+
+            Settings settings = (Settings)other;
+
+            return this._capacity == settings._capacity
+                && this._batchSize == settings._batchSize
+                && this._lingerMillis == settings._lingerMillis
+                && this._threads == settings._threads
+                && this._policy == settings._policy
+                && this._targetLatencyMillis == settings._targetLatencyMillis
+                && this._retries == settings._retries
+                && this._backoffMillis == settings._backoffMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "capacity " + this._capacity + ", batch size " + this._batchSize + ", linger " + this._lingerMillis + "ms, threads " + this._threads + ", " + this._policy + ", target latency " + this._targetLatencyMillis + "ms, retries " + this._retries + ", backoff " + this._backoffMillis + "ms";
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(WritePipeline.class);
+
+    private final String _name;
+    private final Settings _settings;
+    private final Writer _writer;
+    private final Spill _spill;
+    private final InfluxClientMetrics _metrics;
+    private final BatchController _controller;
+    private final Thread[] _threads;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = this._lock.newCondition();
+    private final Condition _notFull = this._lock.newCondition();
+    private final Deque<Chunk> _queue = new ArrayDeque<Chunk>();
+    private int _pending;
+    private boolean _running = true;
+    private boolean _overflowing;
+
+
+    WritePipeline(String name, Settings settings, Writer writer, Spill spill, InfluxClientMetrics metrics) {
+        this._name = name;
+        this._settings = settings;
+        this._writer = writer;
+        this._spill = spill;
+        this._metrics = metrics;
+        this._controller = new BatchController(settings._batchSize, settings._targetLatencyMillis, settings._retries, settings._backoffMillis);
+        this._threads = new Thread[settings._threads];
+        for (int i = 0; i < this._threads.length; i++) {
+            this._threads[i] = new Thread(this::run, "influxdb-writer-" + name + "-" + i);
+            this._threads[i].setDaemon(true);
+            this._threads[i].start();
+        }
+    }
+
+    BatchController controller() {
+        return this._controller;
+    }
+
+    /**
+     * Number of queued points.
+     */
+    int size() {
+        this._lock.lock();
+        try {
+            return this._pending;
+        } finally {
+            this._lock.unlock();
+        }
+    }
+
+    /**
+     * Queue encoded lines, applying the overflow policy if the queue is full.
+     *
+     * A chunk larger than the whole queue is accepted once the queue is empty.
+     *
+     * @param lines number of lines in data
+     */
+    void submit(WriteTarget target, byte[] data, int lines) throws InterruptedException {
+        Chunk chunk = new Chunk(target, data, lines);
+        boolean spill = false;
+
+        this._lock.lock();
+        try {
+            while (this._running && this._pending > 0 && this._pending + lines > this._settings._capacity) {
+                this.overflowing();
+                if (this._settings._policy == OverflowPolicy.BLOCK) {
+                    this._notFull.await();
+                } else if (this._settings._policy == OverflowPolicy.DROP_OLDEST) {
+                    this._pending -= this._queue.poll()._lines;
+                    this._metrics.dropped().mark();
+                } else if (this._settings._policy == OverflowPolicy.DROP_NEWEST) {
+                    this._metrics.dropped().mark();
+                    return;
+                } else {
+                    spill = true;
+                    break;
+                }
+            }
+            if (!spill && this._running) {
+                this._queue.add(chunk);
+                this._pending += lines;
+                this._notEmpty.signal();
+                return;
+            }
+        } finally {
+            this._lock.unlock();
+        }
+        this._spill.spill(target, data);
+    }
+
+    /**
+     * Stop the writer threads once the queue is written (within a timeout), queued chunks left are spilled.
+     */
+    @Override
+    public void close() {
+        this._lock.lock();
+        try {
+            this._running = false;
+            this._notEmpty.signalAll();
+            this._notFull.signalAll();
+        } finally {
+            this._lock.unlock();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(InfluxShard.CLOSE_TIMEOUT_MS);
+
+        for (Thread thread : this._threads) {
+            try {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread thread : this._threads) {
+            thread.interrupt();
+        }
+
+        Chunk chunk;
+
+        while ((chunk = this.poll()) != null) {
+            // the start of a chunk may have been taken already
+            this._spill.spill(chunk._target, chunk._offset > 0 ? Arrays.copyOfRange(chunk._data, chunk._offset, chunk._data.length) : chunk._data);
+        }
+    }
+
+    private Chunk poll() {
+        this._lock.lock();
+        try {
+            Chunk chunk = this._queue.poll();
+
+            if (chunk != null) {
+                this._pending -= chunk._lines;
+            }
+            return chunk;
+        } finally {
+            this._lock.unlock();
+        }
+    }
+
+    private void overflowing() {
+        if (!this._overflowing) {
+            this._overflowing = true;
+            LOG.warn("InfluxDB write queue is full (" + this._name + ", " + this._settings + ")");
+        }
+    }
+
+    private void run() {
+        Buffer buffer = new Buffer();
+
+        try {
+            while (this.take(buffer)) {
+                try {
+                    this._writer.write(buffer._target, buffer._data, buffer._offset, buffer._size);
+                } catch (IOException e) {
+                    this._metrics.dropped().mark();
+                    LOG.error("InfluxDB writer failed to write batch (" + this._name + ", " + e.getMessage() + ")");
+                }
+                buffer.reset();
+            }
+        } catch (InterruptedException e) {
+            // closing
+        }
+    }
+
+    /**
+     * Wait for a batch and move it to the buffer.
+     *
+     * @return false once the pipeline is closed and empty
+     */
+    private boolean take(Buffer buffer) throws InterruptedException {
+        this._lock.lock();
+        try {
+            int batchSize;
+
+            do {
+                while (this._queue.isEmpty()) {
+                    if (!this._running) {
+                        return false;
+                    }
+                    this._notEmpty.await();
+                }
+
+                long remaining = TimeUnit.MILLISECONDS.toNanos(this._settings._lingerMillis);
+
+                batchSize = this._controller.size();
+                while (this._running && this._pending < batchSize && remaining > 0) {
+                    remaining = this._notEmpty.awaitNanos(remaining);
+                }
+                // another writer may have taken everything while lingering
+            } while (this._queue.isEmpty());
+
+            WriteTarget target = this._queue.peek()._target;
+
+            // chunks of other targets keep their place for the next batches
+            for (Iterator<Chunk> i = this._queue.iterator(); i.hasNext(); ) {
+                Chunk chunk = i.next();
+
+                if (!chunk._target.equals(target)) {
+                    continue;
+                }
+                if (buffer._lines > 0 && buffer._lines + chunk._lines > batchSize) {
+                    break;
+                }
+                if (chunk._lines > batchSize) {
+                    // the batch size shrank below the size of chunks, take the first lines only
+                    int end = chunk.end(batchSize);
+
+                    if (end < chunk._data.length) {
+                        buffer.add(chunk._target, chunk._data, chunk._offset, end - chunk._offset, batchSize);
+                        this._pending -= batchSize;
+                        chunk._offset = end;
+                        chunk._lines -= batchSize;
+                        break;
+                    }
+                }
+                i.remove();
+                this._pending -= chunk._lines;
+                buffer.add(chunk._target, chunk._data, chunk._offset, chunk._data.length - chunk._offset, chunk._lines);
+            }
+            if (this._pending <= this._settings._capacity / 2) {
+                this._overflowing = false;
+            }
+            this._notFull.signalAll();
+            if (!this._queue.isEmpty()) {
+                this._notEmpty.signal();
+            }
+            return true;
+        } finally {
+            this._lock.unlock();
+        }
+    }
+
+    private static final class Chunk {
+        private final WriteTarget _target;
+        private final byte[] _data;
+        // first line not taken yet, and number of lines from there
+        private int _offset;
+        private int _lines;
+
+        Chunk(WriteTarget target, byte[] data, int lines) {
+            this._target = target;
+            this._data = data;
+            this._lines = lines;
+        }
+
+        /**
+         * Find the end of the first lines not taken yet.
+         *
+         * @return offset following the n-th line, the end of the data if it has fewer lines
+         */
+        int end(int lines) {
+            for (int i = this._offset; i < this._data.length; i++) {
+                if (this._data[i] == '\n' && --lines == 0) {
+                    return i + 1;
+                }
+            }
+            return this._data.length;
+        }
+    }
+
+    /**
+     * Batch being written by a writer thread, reused from one batch to the next.
+     */
+    private static final class Buffer {
+        private byte[] _owned = new byte[0];
+        private WriteTarget _target;
+        private byte[] _data;
+        private int _offset;
+        private int _size;
+        private int _lines;
+        private int _chunks;
+
+        void add(WriteTarget target, byte[] data, int offset, int length, int lines) {
+            if (this._chunks == 0) {
+                // a single chunk is written as is
+                this._target = target;
+                this._data = data;
+                this._offset = offset;
+                this._size = length;
+            } else {
+                if (this._chunks == 1 || this._size + length > this._owned.length) {
+                    if (this._size + length > this._owned.length) {
+                        this._owned = new byte[Math.max(this._size + length, 2 * this._owned.length)];
+                    }
+                    System.arraycopy(this._data, this._offset, this._owned, 0, this._size);
+                    this._data = this._owned;
+                    this._offset = 0;
+                }
+                System.arraycopy(data, offset, this._data, this._size, length);
+                this._size += length;
+            }
+            this._lines += lines;
+            this._chunks++;
+        }
+
+        void reset() {
+            this._target = null;
+            this._data = null;
+            this._offset = 0;
+            this._size = 0;
+            this._lines = 0;
+            this._chunks = 0;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.TreeMap;
+
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Durable on-disk spool of encoded batches, replayed in order once InfluxDB accepts writes again.
+ *
+ * Batches are appended to a sequence of memory-mapped segment files (a quarter of the spool
+ * size each, up to 16MB, a larger batch getting a segment of its own), each record being
+ * framed as {@code [length][crc32][target length][target][lines]}. A torn record (eg. after
+ * a crash) fails its checksum and marks the end of the segment. A background thread reads
+ * records from the checkpoint position, hands them to the sink and persists the position of
+ * the next record once the sink accepted it, so that a restart resumes where replay stopped.
+ * Segments are deleted once fully replayed.
+ *
+ * Records are forced to disk before {@link #append} returns, so a spooled batch survives a
+ * host crash. The checkpoint is forced at most every {@link #CHECKPOINT_FORCE_MS} or
+ * {@link #CHECKPOINT_FORCE_COMMITS} replayed batches rather than on each of them: a crash may
+ * replay these batches again, which is harmless as InfluxDB overwrites identical points.
+ */
+final class WriteSpool implements Closeable {
+    /**
+     * Destination of replayed batches.
+     */
+    interface Sink {
+        /**
+         * Write a batch, throwing an exception to retry it later.
+         */
+        void write(String target, byte[] data, int offset, int length) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final int CHECKPOINT_SIZE = 16;
+    private static final int CHECKPOINT_MAGIC = 0x1f3d5b79;
+    private static final int CHECKPOINT_FORCE_COMMITS = 64;
+    private static final long CHECKPOINT_FORCE_MS = 1000;
+
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+    private static final long JOIN_TIMEOUT_MS = 1000;
+
+    private final Path _directory;
+    private final long _maxSize;
+    private final int _segmentSize;
+    private final Sink _sink;
+
+    private final FileChannel _lockChannel;
+    private final FileLock _lock;
+    private final MappedByteBuffer _checkpoint;
+
+    private final TreeMap<Long, Segment> _segments = new TreeMap<Long, Segment>();
+    private long _sequence = 0;
+    private long _size = 0;
+    private Segment _head = null;
+    private Segment _tail = null;
+    private int _tailPosition = 0;
+    private int _unforced = 0;
+    private long _forced = 0;
+
+    private final Thread _replayer;
+    private volatile boolean _running = true;
+
+
+    /**
+     * Open (or create) the spool stored in the given directory and start replaying its content.
+     */
+    WriteSpool(Path directory, long maxSize, Sink sink) throws IOException {
+        if (maxSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid spool size (" + maxSize + ")");
+        }
+        this._directory = directory;
+        this._maxSize = maxSize;
+        this._segmentSize = (int)Math.max(MIN_SEGMENT_SIZE, Math.min(SEGMENT_SIZE, maxSize / 4));
+        this._sink = sink;
+
+        Files.createDirectories(directory);
+        this._lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this._lock = this._lockChannel.tryLock();
+        if (this._lock == null) {
+            this._lockChannel.close();
+            throw new IOException("Spool directory is already in use (" + directory + ")");
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this._checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_SIZE);
+        }
+        this.recover();
+
+        this._replayer = new Thread(this::replay, "influxdb-spool-" + directory.getFileName());
+        this._replayer.setDaemon(true);
+        this._replayer.start();
+    }
+
+    /**
+     * Check whether all spooled batches have been replayed.
+     */
+    synchronized boolean isEmpty() {
+        return this._tail == null || (this._tail == this._head && this._tailPosition >= this._head._limit);
+    }
+
+    /**
+     * Size of the spool on disk (in bytes).
+     */
+    synchronized long size() {
+        return this._size;
+    }
+
+    /**
+     * Append a batch to the spool.
+     *
+     * @return false if the spool is full
+     */
+    boolean append(String target, byte[] data, int offset, int length) throws IOException {
+        byte[] key = target.getBytes(StandardCharsets.UTF_8);
+        int recordSize = HEADER_SIZE + 2 + key.length + length;
+        CRC32 crc = new CRC32();
+
+        crc.update(key.length >> 8);
+        crc.update(key.length);
+        crc.update(key);
+        crc.update(data, offset, length);
+
+        MappedByteBuffer map;
+
+        synchronized (this) {
+            if (!this._running) {
+                throw new IOException("Spool is closed (" + this._directory + ")");
+            }
+            if (this._head == null || this._head._limit + recordSize > this._head._capacity) {
+                int capacity = Math.max(this._segmentSize, recordSize);
+
+                if (this._size + capacity > this._maxSize) {
+                    return false;
+                }
+                this.roll(capacity);
+            }
+
+            map = this._head.map();
+
+            ByteBuffer buffer = map.duplicate();
+
+            buffer.position(this._head._limit + HEADER_SIZE);
+            buffer.putShort((short)key.length);
+            buffer.put(key);
+            buffer.put(data, offset, length);
+            buffer.putInt(this._head._limit + 4, (int)crc.getValue());
+            buffer.putInt(this._head._limit, recordSize - HEADER_SIZE);
+            this._head._limit += recordSize;
+            this.notifyAll();
+        }
+        // outside of the lock, so that replay goes on while the record reaches the disk
+        map.force();
+        return true;
+    }
+
+    /**
+     * Stop replaying, leaving any remaining batch on disk for the next start.
+     *
+     * A replay waiting to be retried stops right away, one being written is given a second.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            this._running = false;
+            this.notifyAll();
+        }
+        this._replayer.interrupt();
+        try {
+            this._replayer.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this._replayer.isAlive()) {
+            LOG.warn("InfluxDB spool replay is still writing, closing anyway (" + this._directory + ")");
+        }
+        synchronized (this) {
+            if (this._head != null) {
+                this._head.map().force();
+            }
+            this._checkpoint.force();
+        }
+        this._lock.release();
+        this._lockChannel.close();
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this._directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                try {
+                    long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+
+                    this._segments.put(sequence, new Segment(sequence, file, (int)Files.size(file)));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file in spool directory (" + file + ")");
+                }
+            }
+        }
+
+        long sequence = this._checkpoint.getLong(0);
+        int position = this._checkpoint.getInt(8);
+
+        if (this._checkpoint.getInt(12) != (int)(sequence ^ position ^ CHECKPOINT_MAGIC)) {
+            sequence = -1;
+            position = 0;
+        }
+        while (!this._segments.isEmpty() && this._segments.firstKey() < sequence) {
+            this.delete(this._segments.firstEntry().getValue());
+        }
+        for (Segment segment : this._segments.values()) {
+            segment._limit = segment.scan();
+            this._size += segment._capacity;
+            if (segment != this._segments.lastEntry().getValue()) {
+                segment.unmap();
+            }
+        }
+        this._sequence = this._segments.isEmpty() ? Math.max(sequence + 1, 0) : this._segments.lastKey() + 1;
+        if (!this._segments.isEmpty()) {
+            this._head = this._segments.lastEntry().getValue();
+            this._tail = this._segments.firstEntry().getValue();
+            this._tailPosition = this._tail._sequence == sequence ? Math.min(position, this._tail._limit) : 0;
+            LOG.info("Recovered InfluxDB spool (" + this._directory + ", " + this._segments.size() + " segments)");
+        }
+    }
+
+    private void roll(int capacity) throws IOException {
+        long sequence = this._sequence++;
+        Path file = this._directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(capacity);
+        }
+
+        Segment segment = new Segment(sequence, file, capacity);
+
+        if (this._head != null) {
+            this._head.map().force();
+            if (this._head != this._tail) {
+                this._head.unmap();
+            }
+        }
+        this._segments.put(sequence, segment);
+        this._size += capacity;
+        this._head = segment;
+        if (this._tail == null) {
+            this._tail = segment;
+            this._tailPosition = 0;
+        }
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segment.unmap();
+        this._segments.remove(segment._sequence);
+        this._size -= segment._capacity;
+        Files.deleteIfExists(segment._file);
+    }
+
+    private void replay() {
+        long backoff = MIN_BACKOFF_MS;
+
+        while (this._running) {
+            try {
+                Record record = this.next();
+
+                if (record == null) {
+                    break;
+                }
+                try {
+                    this._sink.write(record._target, record._data, 0, record._data.length);
+                    backoff = MIN_BACKOFF_MS;
+                } catch (IOException e) {
+                    if (!this._running) {
+                        break;
+                    }
+                    LOG.warn("InfluxDB spool replay failed, retrying in " + backoff + "ms (" + e + ")");
+                    this.pause(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                    continue;
+                }
+                this.commit(record);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                LOG.error("InfluxDB spool replay error (" + this._directory + ")", e);
+                try {
+                    this.pause(MAX_BACKOFF_MS);
+                } catch (InterruptedException e2) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the next record to replay, deleting fully replayed segments along the way.
+     */
+    private synchronized Record next() throws IOException, InterruptedException {
+        while (this._running) {
+            if (this._tail != null && this._tailPosition < this._tail._limit) {
+                ByteBuffer buffer = this._tail.map().duplicate();
+                int length = buffer.getInt(this._tailPosition);
+
+                buffer.position(this._tailPosition + HEADER_SIZE);
+
+                byte[] key = new byte[buffer.getShort() & 0xffff];
+
+                buffer.get(key);
+
+                byte[] data = new byte[length - 2 - key.length];
+
+                buffer.get(data);
+                return new Record(new String(key, StandardCharsets.UTF_8), data, this._tail._sequence, this._tailPosition + HEADER_SIZE + length);
+            }
+            if (this._tail != null && this._tail != this._head) {
+                Segment next = this._segments.higherEntry(this._tail._sequence).getValue();
+
+                this.delete(this._tail);
+                this._tail = next;
+                this._tailPosition = 0;
+                this.persist();
+                continue;
+            }
+            this.wait();
+        }
+        return null;
+    }
+
+    /**
+     * Wait before retrying, returning early when closing.
+     */
+    private synchronized void pause(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        long remaining = millis;
+
+        while (this._running && remaining > 0) {
+            this.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    private synchronized void commit(Record record) {
+        if (this._tail != null && this._tail._sequence == record._sequence) {
+            this._tailPosition = record._end;
+            this.persist();
+        }
+    }
+
+    private void persist() {
+        long now = System.currentTimeMillis();
+
+        this._checkpoint.putLong(0, this._tail._sequence);
+        this._checkpoint.putInt(8, this._tailPosition);
+        this._checkpoint.putInt(12, (int)(this._tail._sequence ^ this._tailPosition ^ CHECKPOINT_MAGIC));
+        if (++this._unforced >= CHECKPOINT_FORCE_COMMITS || now - this._forced >= CHECKPOINT_FORCE_MS) {
+            this._checkpoint.force();
+            this._unforced = 0;
+            this._forced = now;
+        }
+    }
+
+    private static final class Segment {
+        private final long _sequence;
+        private final Path _file;
+        private final int _capacity;
+        private int _limit = 0;
+        private MappedByteBuffer _buffer = null;
+
+        Segment(long sequence, Path file, int capacity) {
+            this._sequence = sequence;
+            this._file = file;
+            this._capacity = capacity;
+        }
+
+        MappedByteBuffer map() throws IOException {
+            if (this._buffer == null) {
+                try (FileChannel channel = FileChannel.open(this._file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    this._buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this._capacity);
+                }
+            }
+            return this._buffer;
+        }
+
+        void unmap() {
+            this._buffer = null;
+        }
+
+        /**
+         * Find the end of the last valid record.
+         */
+        int scan() throws IOException {
+            ByteBuffer buffer = this.map().duplicate();
+            CRC32 crc = new CRC32();
+            int position = 0;
+
+            while (position + HEADER_SIZE <= this._capacity) {
+                int length = buffer.getInt(position);
+
+                if (length <= 2 || position + HEADER_SIZE + length > this._capacity) {
+                    break;
+                }
+
+                byte[] record = new byte[length];
+
+                buffer.position(position + HEADER_SIZE);
+                buffer.get(record);
+                crc.reset();
+                crc.update(record);
+                if ((int)crc.getValue() != buffer.getInt(position + 4)) {
+                    LOG.warn("Truncating torn record in InfluxDB spool (" + this._file + "@" + position + ")");
+                    break;
+                }
+                position += HEADER_SIZE + length;
+            }
+            return position;
+        }
+    }
+
+    private static final class Record {
+        private final String _target;
+        private final byte[] _data;
+        private final long _sequence;
+        private final int _end;
+
+        Record(String target, byte[] data, long sequence, int end) {
+            this._target = target;
+            this._data = data;
+            this._sequence = sequence;
+            this._end = end;
+        }
+    }
+}
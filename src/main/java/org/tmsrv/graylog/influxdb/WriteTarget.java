@@ -0,0 +1,72 @@
+package org.tmsrv.graylog.influxdb;
+
+import java.util.Objects;
+
+
+/**
+ * Database and retention policy a batch is written to.
+ */
+final class WriteTarget {
+    // can't be part of a database name given in a url parameter
+    private static final char SEPARATOR = '\0';
+
+    private final String _database;
+    private final String _retentionPolicy;
+
+
+    /**
+     * @param retentionPolicy retention policy (null for the default one of the database)
+     */
+    WriteTarget(String database, String retentionPolicy) {
+        this._database = database;
+        this._retentionPolicy = retentionPolicy;
+    }
+
+    String database() {
+        return this._database;
+    }
+
+    /**
+     * Retention policy (null for the default one of the database).
+     */
+    String retentionPolicy() {
+        return this._retentionPolicy;
+    }
+
+    /**
+     * Serialized form, as stored in the spool (the database alone for the default retention policy).
+     */
+    String key() {
+        return this._retentionPolicy != null ? this._database + SEPARATOR + this._retentionPolicy : this._database;
+    }
+
+    static WriteTarget parse(String key) {
+        int separator = key.indexOf(SEPARATOR);
+
+        if (separator < 0) {
+            return new WriteTarget(key, null);
+        }
+        return new WriteTarget(key.substring(0, separator), key.substring(separator + 1));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this._database, this._retentionPolicy);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof WriteTarget)) {
+            return false;
+        }
+
+        WriteTarget target = (WriteTarget)other;
+
+        return this._database.equals(target._database) && Objects.equals(this._retentionPolicy, target._retentionPolicy);
+    }
+
+    @Override
+    public String toString() {
+        return this._retentionPolicy != null ? this._database + "." + this._retentionPolicy : this._database;
+    }
+}
@@ -0,0 +1,70 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class BatchControllerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+
+    @Test
+    public void halvesOnSlowWritesAndFailures() {
+        BatchController controller = new BatchController(640, 100, 3, 100);
+
+        controller.failed();
+        assertEquals(320, controller.size());
+        controller.succeeded(SLOW);
+        assertEquals(160, controller.size());
+        for (int i = 0; i < 20; i++) {
+            controller.failed();
+        }
+        // floor of 1/64 of the configured size
+        assertEquals(10, controller.size());
+    }
+
+    @Test
+    public void growsBackByStepsOnFastWrites() {
+        BatchController controller = new BatchController(640, 100, 3, 100);
+
+        controller.failed();
+        controller.succeeded(FAST);
+        // steps of 1/32 of the configured size
+        assertEquals(340, controller.size());
+        for (int i = 0; i < 100; i++) {
+            controller.succeeded(FAST);
+        }
+        assertEquals(640, controller.size());
+    }
+
+    @Test
+    public void keepsSizeWithoutTargetLatency() {
+        BatchController controller = new BatchController(640, 0, 3, 100);
+
+        controller.failed();
+        controller.succeeded(SLOW);
+        assertEquals(640, controller.size());
+    }
+
+    @Test
+    public void boundsBackoffExponentially() {
+        BatchController controller = new BatchController(640, 100, 3, 100);
+
+        assertEquals(3, controller.retries());
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long bound = Math.min(30000, 100L << Math.min(attempt, 20));
+
+            for (int i = 0; i < 100; i++) {
+                long backoff = controller.backoff(attempt);
+
+                assertTrue(attempt + ": " + backoff, backoff >= 0 && backoff <= bound);
+            }
+        }
+        assertEquals(0, new BatchController(640, 100, 3, 0).backoff(5));
+    }
+}
@@ -0,0 +1,111 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class CardinalityGuardTest {
+    private static final long WINDOW_MS = 3600000;
+    private static final long SLOT_MS = WINDOW_MS / 4;
+
+
+    @Test
+    public void estimatesDistinctValues() {
+        for (int distinct : new int[] { 100, 1000, 10000, 100000, 1000000 }) {
+            CardinalityGuard guard = new CardinalityGuard(new String[] { "id" }, Integer.MAX_VALUE, WINDOW_MS, CardinalityGuard.Overflow.BUCKET);
+
+            for (int i = 0; i < distinct; i++) {
+                guard.apply(new Object[] { "value-" + i }, 0);
+                // values already seen don't change the estimate
+                guard.apply(new Object[] { "value-" + (i / 2) }, 0);
+            }
+
+            long estimate = estimate(guard, SLOT_MS);
+
+            assertTrue("estimated " + estimate + " of " + distinct, Math.abs(estimate - distinct) <= distinct * 0.05);
+        }
+    }
+
+    @Test
+    public void replacesNewValuesOverTheLimit() {
+        CardinalityGuard guard = new CardinalityGuard(new String[] { "id" }, 1000, WINDOW_MS, CardinalityGuard.Overflow.BUCKET);
+
+        for (int i = 0; i < 5000; i++) {
+            guard.apply(new Object[] { "value-" + i }, 0);
+        }
+        assertTrue(guard.cardinality(0) > 1000);
+        assertTrue(guard.overflowed() > 0);
+        assertEquals(CardinalityGuard.OVERFLOW_VALUE, apply(guard, "new", 0));
+        // values recorded while approaching the limit are still admitted
+        assertEquals("value-900", apply(guard, "value-900", 0));
+    }
+
+    @Test
+    public void admitsEarlyValuesOfSmallLimits() {
+        CardinalityGuard guard = new CardinalityGuard(new String[] { "id" }, 20, WINDOW_MS, CardinalityGuard.Overflow.BUCKET);
+
+        for (int i = 0; i < 15; i++) {
+            assertEquals("value-" + i, apply(guard, "value-" + i, 0));
+        }
+        for (int i = 15; i < 200; i++) {
+            guard.apply(new Object[] { "value-" + i }, 0);
+        }
+        assertEquals(CardinalityGuard.OVERFLOW_VALUE, apply(guard, "new", 0));
+        for (int i = 0; i < 15; i++) {
+            assertEquals("value-" + i, apply(guard, "value-" + i, 0));
+        }
+        // at most a couple of values got past the limit before it was noticed
+        assertTrue(guard.overflowed() >= 180);
+    }
+
+    @Test
+    public void dropsNewValuesOverTheLimit() {
+        CardinalityGuard guard = new CardinalityGuard(new String[] { "id" }, 1000, WINDOW_MS, CardinalityGuard.Overflow.DROP);
+
+        for (int i = 0; i < 5000; i++) {
+            guard.apply(new Object[] { "value-" + i }, 0);
+        }
+        assertNull(apply(guard, "new", 0));
+    }
+
+    @Test
+    public void admitsValuesOnceTheWindowSlidesPast() {
+        CardinalityGuard guard = new CardinalityGuard(new String[] { "id" }, 1000, WINDOW_MS, CardinalityGuard.Overflow.BUCKET);
+
+        for (int i = 0; i < 5000; i++) {
+            guard.apply(new Object[] { "value-" + i }, 0);
+        }
+        assertEquals(CardinalityGuard.OVERFLOW_VALUE, apply(guard, "new", 0));
+        assertEquals("new", apply(guard, "new", WINDOW_MS + SLOT_MS));
+        assertTrue(guard.cardinality(0) < 10);
+    }
+
+    @Test
+    public void leavesMissingValuesAlone() {
+        CardinalityGuard guard = new CardinalityGuard(new String[] { "a", "b" }, 1, WINDOW_MS, CardinalityGuard.Overflow.BUCKET);
+        Object[] values = { null, "" };
+
+        guard.apply(values, 0);
+        assertNull(values[0]);
+        assertEquals("", values[1]);
+        assertEquals(0, guard.overflowed());
+    }
+
+    /**
+     * Get a fresh estimate, recomputed when moving to the next slot.
+     */
+    private static long estimate(CardinalityGuard guard, long now) {
+        guard.apply(new Object[] { "value-0" }, now);
+        return guard.cardinality(0);
+    }
+
+    private static Object apply(CardinalityGuard guard, String value, long now) {
+        Object[] values = { value };
+
+        guard.apply(values, now);
+        return values[0];
+    }
+}
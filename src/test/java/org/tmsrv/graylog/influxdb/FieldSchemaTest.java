@@ -0,0 +1,120 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class FieldSchemaTest {
+    // sorted
+    private static final String[] FIELDS = { "count", "duration", "ok", "path name" };
+
+
+    @Test
+    public void writesValuesAsTheyAreUntilTypesAreKnown() {
+        FieldSchema schema = new FieldSchema("m", FIELDS, FieldSchema.Conflict.COERCE);
+
+        assertEquals("m count=1.5,duration=\"x\" 1\n", encode(schema, "db", 1.5, "x"));
+        assertEquals(0, schema.conflicts());
+    }
+
+    @Test
+    public void coercesConflictingValues() {
+        FieldSchema schema = new FieldSchema("m", FIELDS, FieldSchema.Conflict.COERCE);
+
+        schema.seed("db", types("count", "integer", "duration", "float"));
+        assertEquals("m count=1i,duration=2.5 1\n", encode(schema, "db", 1.9, "2.5"));
+        assertEquals("m count=1i,duration=1.0 1\n", encode(schema, "db", true, 1L));
+        // values which can't be converted are skipped
+        assertEquals("m duration=3.0 1\n", encode(schema, "db", "many", 3.0));
+        assertEquals(5, schema.conflicts());
+        // another database has its own types
+        assertEquals("m count=1.9,duration=\"2.5\" 1\n", encode(schema, "other", 1.9, "2.5"));
+    }
+
+    @Test
+    public void divertsConflictingValues() {
+        FieldSchema schema = new FieldSchema("m", FIELDS, FieldSchema.Conflict.DIVERT);
+
+        schema.seed("db", types("count", "integer", "duration", "float"));
+        assertEquals("m count_float=1.9,duration_string=\"2.5\" 1\n", encode(schema, "db", 1.9, "2.5"));
+        assertEquals("m count=2i,duration=2.5 1\n", encode(schema, "db", 2L, 2.5));
+        assertEquals(2, schema.conflicts());
+    }
+
+    @Test
+    public void learnsTypesFromAcknowledgedLines() {
+        FieldSchema schema = new FieldSchema("m", FIELDS, FieldSchema.Conflict.COERCE);
+
+        schema.types("db");
+        learn(schema, "db", "mx count=1.0 1\nm,host=a\\ b count=5i,path\\ name=\"a=\\\"b\\\",c\",ok=T 1\nother duration=1i 1\nm duration=2.5 2\n");
+        assertEquals(FieldSchema.Type.INTEGER, schema.type("db", 0));
+        assertEquals(FieldSchema.Type.FLOAT, schema.type("db", 1));
+        assertEquals(FieldSchema.Type.BOOLEAN, schema.type("db", 2));
+        assertEquals(FieldSchema.Type.STRING, schema.type("db", 3));
+
+        // the first type known is kept
+        learn(schema, "db", "m count=1.0 3\n");
+        assertEquals(FieldSchema.Type.INTEGER, schema.type("db", 0));
+    }
+
+    @Test
+    public void ignoresDatabasesNotTargeted() {
+        FieldSchema schema = new FieldSchema("m", FIELDS, FieldSchema.Conflict.COERCE);
+
+        learn(schema, "other", "m count=5i 1\n");
+        assertNull(schema.type("other", 0));
+    }
+
+    @Test
+    public void stopsLearningAfterEnoughBatches() {
+        FieldSchema schema = new FieldSchema("m", FIELDS, FieldSchema.Conflict.COERCE);
+
+        schema.types("db");
+        for (int i = 0; i < FieldSchema.LEARN_BATCHES; i++) {
+            // batches without the measurement don't count
+            learn(schema, "db", "other count=1i 1\n");
+            learn(schema, "db", "m duration=1.5 1\n");
+        }
+        learn(schema, "db", "m count=1i 1\n");
+        assertEquals(FieldSchema.Type.FLOAT, schema.type("db", 1));
+        assertNull(schema.type("db", 0));
+    }
+
+    /**
+     * Encode a line with values of the first two fields.
+     */
+    private static String encode(FieldSchema schema, String database, Object count, Object duration) {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+        FieldSchema.Types types = schema.types(database);
+
+        encoder.beginLine("m");
+        schema.field(encoder, types, 0, count);
+        schema.field(encoder, types, 1, duration);
+        assertFalse(schema.field(encoder, types, 2, null));
+        encoder.endLineNanos(1);
+        return new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8);
+    }
+
+    private static void learn(FieldSchema schema, String database, String lines) {
+        byte[] data = lines.getBytes(StandardCharsets.UTF_8);
+
+        schema.learn(database, data, 0, data.length);
+    }
+
+    private static Map<String, String> types(String... types) {
+        Map<String, String> map = new HashMap<String, String>();
+
+        for (int i = 0; i < types.length; i += 2) {
+            map.put(types[i], types[i + 1]);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,82 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class FilterPlanTest {
+    // enough messages for the sampled ones to trigger several reorderings
+    private static final int MESSAGES = 300000;
+
+
+    @Test
+    public void keepsResultsWhileReordering() {
+        List<String> filters = Arrays.asList("always", "level~INFO|WARN", "host!=db-1", "path~/api/.*");
+        FilterPlan plan = plan(filters);
+        String initial = plan.toString();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            Map<String, Object> fields = message(i);
+            boolean expected = fields.containsKey("always")
+                && (fields.get("level").equals("INFO") || fields.get("level").equals("WARN"))
+                && !fields.get("host").equals("db-1")
+                && ((String)fields.get("path")).startsWith("/api/");
+
+            assertEquals(fields.toString(), expected, plan.matches(fields));
+        }
+
+        String order = plan.toString();
+
+        assertFalse(order, order.equals(initial));
+        // a filter which never rejects goes last
+        assertTrue(order, order.startsWith("level~") || order.startsWith("host!=") || order.startsWith("path~"));
+        assertTrue(order, order.matches(".*, always \\(reject 0%, \\d+ns\\)"));
+    }
+
+    @Test
+    public void groupsFiltersOnTheSameField() {
+        FilterPlan plan = plan(Arrays.asList("level!=DEBUG", "host", "level!=TRACE"));
+        Map<String, Object> fields = message(0);
+
+        assertTrue(plan.matches(fields));
+        fields.put("level", "TRACE");
+        assertFalse(plan.matches(fields));
+        fields.remove("host");
+        fields.put("level", "INFO");
+        assertFalse(plan.matches(fields));
+        assertTrue(plan.toString(), plan.toString().matches("level!=DEBUG .*, level!=TRACE .*, host .*"));
+    }
+
+    @Test
+    public void matchesWithoutFilters() {
+        assertTrue(plan(new ArrayList<String>()).matches(message(0)));
+    }
+
+    private static FilterPlan plan(List<String> filters) {
+        List<PointBuilder.FieldMatcher> matchers = new ArrayList<PointBuilder.FieldMatcher>();
+
+        for (String filter : filters) {
+            matchers.add(PointBuilder.buildMatcher(filter));
+        }
+        return new FilterPlan(matchers, filters);
+    }
+
+    private static Map<String, Object> message(int i) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+
+        fields.put("always", true);
+        fields.put("level", new String[] { "INFO", "WARN", "ERROR", "DEBUG" }[i % 4]);
+        fields.put("host", "db-" + (i % 3));
+        fields.put("path", (i % 10 == 0 ? "/static/" : "/api/") + i);
+        return fields;
+    }
+}
@@ -0,0 +1,46 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Test;
+
+
+public class InfluxMetricsTest {
+    private final MetricRegistry registry = new MetricRegistry();
+
+
+    @Test
+    public void keepsMetricsOfOverlappingOutputs() {
+        // database graylog with measurement x, database graylog.x with measurement y
+        InfluxMetrics outer = new InfluxMetrics(this.registry, "graylog.x");
+        InfluxMetrics inner = new InfluxMetrics(this.registry, "graylog.x.y");
+
+        outer.gauge((Gauge<Integer>)() -> 1, "health");
+        inner.gauge((Gauge<Integer>)() -> 2, "health");
+        outer.close();
+
+        assertTrue(this.registry.getNames().contains(MetricRegistry.name(InfluxOutput.class, "graylog.x.y.messages.written")));
+        assertTrue(this.registry.getNames().contains(MetricRegistry.name(InfluxOutput.class, "graylog.x.y.health")));
+        assertFalse(this.registry.getNames().contains(MetricRegistry.name(InfluxOutput.class, "graylog.x.health")));
+
+        inner.close();
+        assertTrue(this.registry.getNames().isEmpty());
+    }
+
+    @Test
+    public void suffixesTakenNames() {
+        InfluxMetrics first = new InfluxMetrics(this.registry, "graylog.x");
+        InfluxMetrics second = new InfluxMetrics(this.registry, "graylog.x");
+
+        first.written().mark();
+        assertEquals(0, second.written().getCount());
+        assertTrue(this.registry.getNames().contains(MetricRegistry.name(InfluxOutput.class, "graylog.x-2.messages.written")));
+        first.close();
+        second.close();
+    }
+}
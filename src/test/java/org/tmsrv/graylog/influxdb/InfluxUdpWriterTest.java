@@ -0,0 +1,117 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class InfluxUdpWriterTest {
+    private static final WriteTarget TARGET = new WriteTarget("graylog", null);
+
+    private final InfluxClientMetrics metrics = new InfluxClientMetrics(new MetricRegistry(), "udp");
+    private DatagramChannel receiver;
+
+
+    @Before
+    public void open() throws IOException {
+        this.receiver = DatagramChannel.open();
+        this.receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void close() throws IOException {
+        this.receiver.close();
+        this.metrics.close();
+    }
+
+    @Test
+    public void packsLinesUpToThePayloadSize() throws IOException {
+        // lines of 10 bytes each, 3 fit in a payload of 30 bytes
+        this.write(30, "m0 v=1i 0\nm1 v=1i 0\nm2 v=1i 0\nm3 v=1i 0\nm4 v=1i 0\n");
+
+        assertEquals(Arrays.asList("m0 v=1i 0\nm1 v=1i 0\nm2 v=1i 0\n", "m3 v=1i 0\nm4 v=1i 0\n"), this.receive(2));
+        assertEquals(2, this.metrics.packetsSent().getCount());
+        assertEquals(50, this.metrics.bytesSent().getCount());
+    }
+
+    @Test
+    public void neverSplitsLines() throws IOException {
+        // the last line doesn't end with a newline, the large one is sent alone
+        this.write(25, "m0 v=1i 0\nmeasurement v=1i 0\nm1 v=1i 0\nm2 v=1i 0");
+
+        assertEquals(Arrays.asList("m0 v=1i 0\n", "measurement v=1i 0\n", "m1 v=1i 0\nm2 v=1i 0"), this.receive(3));
+    }
+
+    @Test
+    public void sendsLinesLargerThanThePayloadAlone() throws IOException {
+        this.write(8, "m0 v=1i 0\nm1 v=1i 0\n");
+
+        assertEquals(Arrays.asList("m0 v=1i 0\n", "m1 v=1i 0\n"), this.receive(2));
+        assertEquals(0, this.metrics.packetsDropped().getCount());
+    }
+
+    @Test
+    public void dropsDatagramsOnSendFailures() throws IOException {
+        int port = ((InetSocketAddress)this.receiver.getLocalAddress()).getPort();
+        LineWriter writer = new InfluxUdpWriter("udp://127.0.0.1:" + port, 30, this.metrics);
+
+        // the listener is gone, which may only be reported on a later datagram
+        this.receiver.close();
+        try {
+            for (int i = 0; i < 10; i++) {
+                byte[] data = "m0 v=1i 0\n".getBytes(StandardCharsets.UTF_8);
+
+                writer.write(TARGET, data, 0, data.length);
+            }
+        } finally {
+            writer.close();
+        }
+
+        assertEquals(10, this.metrics.packetsSent().getCount() + this.metrics.packetsDropped().getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherSchemes() throws IOException {
+        new InfluxUdpWriter("http://127.0.0.1:8089", 1400, this.metrics);
+    }
+
+    private void write(int payloadSize, String text) throws IOException {
+        int port = ((InetSocketAddress)this.receiver.getLocalAddress()).getPort();
+        LineWriter writer = new InfluxUdpWriter("udp://127.0.0.1:" + port, payloadSize, this.metrics);
+        byte[] data = ("#" + text + "#").getBytes(StandardCharsets.UTF_8);
+
+        try {
+            writer.write(TARGET, data, 1, data.length - 2);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private List<String> receive(int count) throws IOException {
+        List<String> datagrams = new ArrayList<String>();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        while (datagrams.size() < count) {
+            buffer.clear();
+            this.receiver.receive(buffer);
+            datagrams.add(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        }
+        return datagrams;
+    }
+}
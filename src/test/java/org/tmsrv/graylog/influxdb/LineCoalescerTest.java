@@ -0,0 +1,95 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class LineCoalescerTest {
+    private final InfluxMetrics metrics = new InfluxMetrics(new MetricRegistry(), "test");
+
+
+    @After
+    public void close() {
+        this.metrics.close();
+    }
+
+    @Test
+    public void leavesBatchWithoutDuplicatesUntouched() {
+        LineProtocolEncoder source = encode(
+            "m,t=a", "x=1.0", 1000,
+            "m,t=b", "x=2.0", 1000,
+            "m,t=a", "x=3.0", 2000
+        );
+
+        assertSame(source, new LineCoalescer(LineCoalescer.Conflict.LAST, this.metrics).coalesce(source));
+        assertEquals(0, this.metrics.coalesced().getCount());
+    }
+
+    @Test
+    public void keepsLastValueOfConflictingFields() {
+        LineProtocolEncoder merged = new LineCoalescer(LineCoalescer.Conflict.LAST, this.metrics).coalesce(duplicates());
+
+        assertEquals("m,t=a x=4.0,y=3i 1000\nm,t=b x=2.0 1000\n", text(merged));
+        assertEquals(2, merged.lines());
+        assertEquals(2, this.metrics.coalesced().getCount());
+        assertEquals(1, this.metrics.conflicts().getCount());
+    }
+
+    @Test
+    public void keepsFirstValueOfConflictingFields() {
+        LineProtocolEncoder merged = new LineCoalescer(LineCoalescer.Conflict.FIRST, this.metrics).coalesce(duplicates());
+
+        assertEquals("m,t=a x=1.0,y=3i 1000\nm,t=b x=2.0 1000\n", text(merged));
+    }
+
+    @Test
+    public void splitsFieldsOutsideOfQuotes() {
+        LineProtocolEncoder merged = new LineCoalescer(LineCoalescer.Conflict.LAST, this.metrics).coalesce(encode(
+            "m", "s=\"a,b=\\\"c\\\"\"", -5,
+            "m", "n=1i,s=\"d\"", -5,
+            "m", "e\\,k=true", -5
+        ));
+
+        assertEquals("m s=\"d\",n=1i,e\\,k=true -5\n", text(merged));
+    }
+
+    /**
+     * Lines of series m,t=a at the same time, around a line of another series.
+     */
+    private static LineProtocolEncoder duplicates() {
+        return encode(
+            "m,t=a", "x=1.0", 1000,
+            "m,t=b", "x=2.0", 1000,
+            "m,t=a", "y=3i", 1000,
+            "m,t=a", "x=4.0", 1000
+        );
+    }
+
+    /**
+     * Encode lines given as series key, encoded fields and timestamp (in ns).
+     */
+    private static LineProtocolEncoder encode(Object... lines) {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        for (int i = 0; i < lines.length; i += 3) {
+            encoder.beginLine(((String)lines[i]).getBytes(StandardCharsets.UTF_8));
+
+            byte[] fields = ((String)lines[i + 1]).getBytes(StandardCharsets.UTF_8);
+
+            encoder.field(fields, 0, fields.length);
+            encoder.endLineNanos((Integer)lines[i + 2]);
+        }
+        return encoder;
+    }
+
+    private static String text(LineProtocolEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8);
+    }
+}
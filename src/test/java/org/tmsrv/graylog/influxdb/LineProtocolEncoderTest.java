@@ -0,0 +1,190 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Collections;
+
+import java.util.concurrent.TimeUnit;
+
+import org.influxdb.dto.Point;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that encoded lines are byte-identical to influxdb-java's {@code Point.lineProtocol()}.
+ */
+public class LineProtocolEncoderTest {
+    private static final long TIMESTAMP = 1546300800123L;
+
+    private static final double[] DOUBLES = {
+        0.0, -0.0, 1.0, -2.5, 0.1, 1.0 / 3.0, 123456.789, 1e-7, -1.5e-10, 1e14, 1e15, 1.2345e20,
+        9007199254740993.0, Double.MAX_VALUE, Double.MIN_VALUE, Double.MIN_NORMAL,
+    };
+
+
+    @Test
+    public void escapesMeasurementTagsAndStrings() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("http requests,v=1");
+        encoder.tag("host name", "a,b=c");
+        encoder.tag("path", "/x y\\z");
+        encoder.field("dur ms", 1.5);
+        encoder.field("msg", "say \"hi\" \\ bye, x=y");
+        encoder.endLine(TIMESTAMP);
+
+        assertLine(
+            Point.measurement("http requests,v=1")
+                .tag("host name", "a,b=c")
+                .tag("path", "/x y\\z")
+                .addField("dur ms", 1.5)
+                .addField("msg", "say \"hi\" \\ bye, x=y")
+                .time(TIMESTAMP, TimeUnit.MILLISECONDS)
+                .build(),
+            encoder
+        );
+    }
+
+    @Test
+    public void skipsEmptyTags() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("m");
+        encoder.tag("a", "");
+        encoder.tag("b", null);
+        encoder.tag("c", "x");
+        encoder.field("v", 1L);
+        encoder.endLine(TIMESTAMP);
+
+        assertLine(Point.measurement("m").tag("a", "").tag("c", "x").addField("v", 1L).time(TIMESTAMP, TimeUnit.MILLISECONDS).build(), encoder);
+    }
+
+    @Test
+    public void formatsDoublesInPlainNotation() {
+        for (double value : DOUBLES) {
+            LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+            encoder.beginLine("m");
+            encoder.field("v", value);
+            encoder.endLine(TIMESTAMP);
+
+            assertLine(Point.measurement("m").addField("v", value).time(TIMESTAMP, TimeUnit.MILLISECONDS).build(), encoder);
+        }
+    }
+
+    @Test
+    public void formatsFloatsAsDoubles() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("m");
+        encoder.field("v", 1.1f);
+        encoder.endLine(TIMESTAMP);
+
+        assertLine(Point.measurement("m").fields(Collections.<String, Object>singletonMap("v", 1.1f)).time(TIMESTAMP, TimeUnit.MILLISECONDS).build(), encoder);
+    }
+
+    @Test
+    public void formatsIntegersAndBooleans() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("m");
+        encoder.field("a", Long.MIN_VALUE);
+        encoder.field("b", 0);
+        encoder.field("c", true);
+        encoder.field("d", false);
+        encoder.field("e", Long.MAX_VALUE);
+        encoder.endLine(TIMESTAMP);
+
+        assertLine(
+            Point.measurement("m")
+                .addField("a", Long.MIN_VALUE)
+                .addField("b", 0L)
+                .addField("c", true)
+                .addField("d", false)
+                .addField("e", Long.MAX_VALUE)
+                .time(TIMESTAMP, TimeUnit.MILLISECONDS)
+                .build(),
+            encoder
+        );
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("m\u00e9");
+        encoder.tag("pair", "a\ud83d\ude00b");
+        encoder.tag("single", "x\ud800");
+        encoder.field("s", "\udc00y\u20ac");
+        encoder.endLine(TIMESTAMP);
+
+        assertLine(
+            Point.measurement("m\u00e9")
+                .tag("pair", "a\ud83d\ude00b")
+                .tag("single", "x\ud800")
+                .addField("s", "\udc00y\u20ac")
+                .time(TIMESTAMP, TimeUnit.MILLISECONDS)
+                .build(),
+            encoder
+        );
+    }
+
+    @Test
+    public void skipsNonFiniteDoubles() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("m");
+        assertFalse(encoder.field("a", Double.NaN));
+        assertTrue(encoder.field("b", 1.0));
+        assertFalse(encoder.field("c", Double.POSITIVE_INFINITY));
+        assertFalse(encoder.field("d", Float.NEGATIVE_INFINITY));
+        assertTrue(encoder.endLineNanos(1));
+        assertEquals("m b=1.0 1\n", text(encoder));
+
+        // a line left without fields is rolled back
+        encoder.beginLine("n");
+        assertFalse(encoder.field("a", Double.NaN));
+        assertFalse(encoder.endLineNanos(2));
+        assertEquals("m b=1.0 1\n", text(encoder));
+        assertEquals(1, encoder.lines());
+    }
+
+    @Test
+    public void tracksLineBoundaries() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        encoder.beginLine("m");
+        encoder.tag("t", "a");
+        encoder.field("v", 1L);
+        encoder.endLineNanos(1);
+        encoder.beginLine("n");
+        encoder.field("v", "x y");
+        encoder.endLineNanos(2);
+
+        String text = text(encoder);
+
+        assertEquals(2, encoder.lines());
+        assertEquals("m,t=a", text.substring(encoder.lineStart(0), encoder.seriesEnd(0)));
+        assertEquals("m,t=a v=1i 1\n", text.substring(encoder.lineStart(0), encoder.lineEnd(0)));
+        assertEquals("n", text.substring(encoder.lineStart(1), encoder.seriesEnd(1)));
+        assertEquals("n v=\"x y\" 2\n", text.substring(encoder.lineStart(1), encoder.lineEnd(1)));
+    }
+
+    /**
+     * Compare an encoded line to the line of a point, once both are encoded in UTF-8.
+     */
+    private static void assertLine(Point expected, LineProtocolEncoder encoder) {
+        byte[] bytes = (expected.lineProtocol(TimeUnit.NANOSECONDS) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(new String(bytes, StandardCharsets.UTF_8), text(encoder));
+    }
+
+    private static String text(LineProtocolEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8);
+    }
+}
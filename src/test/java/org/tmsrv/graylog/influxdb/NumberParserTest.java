@@ -0,0 +1,84 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class NumberParserTest {
+    @Test
+    public void parsesPlainNumbers() {
+        assertEquals(12.0, NumberParser.PLAIN.parse(" 12 "), 0.0);
+        assertEquals(-1.5, NumberParser.PLAIN.parse("-1.5"), 0.0);
+        assertEquals(2000.0, NumberParser.PLAIN.parse("2e3"), 0.0);
+        assertEquals(0.1, NumberParser.PLAIN.parse("0.1"), 0.0);
+        assertEquals(Double.parseDouble("1234567890.12345678901"), NumberParser.PLAIN.parse("1234567890.12345678901"), 0.0);
+        assertTrue(Double.isNaN(NumberParser.PLAIN.parse("1k")));
+    }
+
+    @Test
+    public void convertsUnitsExactly() {
+        NumberParser nanos = new NumberParser("ns");
+        NumberParser millis = new NumberParser("ms");
+
+        assertEquals(Long.valueOf(3000), nanos.parseLong("3us"));
+        assertEquals(3000.0, nanos.parse("3us"), 0.0);
+        assertEquals(3000.0, nanos.parse("3\u00b5s"), 0.0);
+        assertEquals(1500000.0, nanos.parse("1.5ms"), 0.0);
+        assertEquals(Long.valueOf(7000000000L), nanos.parseLong("7s"));
+        assertEquals(100.0, millis.parse("0.1s"), 0.0);
+        assertEquals(0.001, millis.parse("1us"), 0.0);
+        assertEquals(3600000.0, millis.parse("1h"), 0.0);
+        assertEquals(5e-9, new NumberParser("s").parse("5ns"), 0.0);
+        assertEquals(1.5, new NumberParser("min").parse("90s"), 0.0);
+        assertEquals(172800.0, new NumberParser("s").parse("2d"), 0.0);
+        assertEquals(Long.valueOf(1024), new NumberParser("B").parseLong("1KiB"));
+        assertEquals(0.9765625, new NumberParser("KiB").parse("1kB"), 0.0);
+        assertEquals(2.5e15, new NumberParser("B").parse("2.5PB"), 0.0);
+        assertEquals(1.5e-6, new NumberParser("G").parse("1.5k"), 0.0);
+        assertEquals(1234.5678901234567, nanos.parse("1.2345678901234567891us"), 1e-12);
+    }
+
+    @Test
+    public void rejectsUnitsOfAnotherKind() {
+        NumberParser millis = new NumberParser("ms");
+
+        assertTrue(Double.isNaN(millis.parse("1kB")));
+        assertTrue(Double.isNaN(millis.parse("1m")));
+        assertNull(millis.parseLong("1 parsec"));
+    }
+
+    @Test
+    public void roundsFractionsToLongs() {
+        assertEquals(Long.valueOf(3), NumberParser.PLAIN.parseLong("2.5"));
+        assertEquals(Long.valueOf(2), NumberParser.PLAIN.parseLong("2.4999"));
+        assertEquals(Long.valueOf(-2), NumberParser.PLAIN.parseLong("-2.4"));
+        assertEquals(Long.valueOf(2), new NumberParser("ms").parseLong("1500us"));
+        assertEquals(Long.valueOf(2000), NumberParser.PLAIN.parseLong("2e3"));
+    }
+
+    @Test
+    public void parsesLongBounds() {
+        assertEquals(Long.valueOf(Long.MAX_VALUE), NumberParser.PLAIN.parseLong("9223372036854775807"));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), NumberParser.PLAIN.parseLong("-9223372036854775808"));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), NumberParser.PLAIN.parseLong("-9.223372036854775808e18"));
+    }
+
+    @Test
+    public void rejectsLongOverflow() {
+        assertNull(NumberParser.PLAIN.parseLong("9223372036854775808"));
+        assertNull(NumberParser.PLAIN.parseLong("-9223372036854775809"));
+        assertNull(NumberParser.PLAIN.parseLong("1e19"));
+        assertNull(new NumberParser("ns").parseLong("10000000000s"));
+    }
+
+    @Test
+    public void rejectsInvalidText() {
+        for (String text : new String[] { "", " ", "-", "+", ".", "abc", "1x", "1 2", "--1", "1e", "e3", "0x10" }) {
+            assertNull(text, NumberParser.PLAIN.parseLong(text));
+            assertTrue(text, Double.isNaN(NumberParser.PLAIN.parse(text)));
+        }
+    }
+}
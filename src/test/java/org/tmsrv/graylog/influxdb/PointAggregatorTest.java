@@ -0,0 +1,109 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+public class PointAggregatorTest {
+    private static final long WINDOW = 1000L;
+
+
+    @Test
+    public void rollsUpValuesPerWindow() {
+        PointAggregator aggregator = aggregator();
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        assertTrue(aggregator.add(1200L, new String[] { "a" }, new Object[] { 1.0 }));
+        assertTrue(aggregator.add(1700L, new String[] { "a" }, new Object[] { 3 }));
+        assertTrue(aggregator.add(1999L, new String[] { "a" }, new Object[] { "x" }));
+        assertTrue(aggregator.add(2000L, new String[] { "a" }, new Object[] { true }));
+
+        assertEquals(1, aggregator.drain(3000L, false, encoder));
+        assertEquals("m,host=a d_count=2i,d_max=3.0,d_mean=2.0,d_min=1.0,d_sum=4.0 1000000000\n", text(encoder));
+
+        encoder.reset();
+        assertEquals(1, aggregator.drain(4000L, false, encoder));
+        assertEquals("m,host=a d_count=1i,d_max=1.0,d_mean=1.0,d_min=1.0,d_sum=1.0 2000000000\n", text(encoder));
+    }
+
+    @Test
+    public void keepsSeriesApart() {
+        PointAggregator aggregator = aggregator();
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        aggregator.add(1000L, new String[] { "a" }, new Object[] { 1 });
+        aggregator.add(1000L, new String[] { "b" }, new Object[] { 2 });
+        aggregator.add(1000L, new String[] { "" }, new Object[] { 3 });
+        aggregator.add(1000L, new String[] { null }, new Object[] { 4 });
+
+        assertEquals(3, aggregator.drain(0L, true, encoder));
+
+        String[] lines = text(encoder).split("\n");
+
+        Arrays.sort(lines);
+        assertEquals(
+            Arrays.asList(
+                "m d_count=2i,d_max=4.0,d_mean=3.5,d_min=3.0,d_sum=7.0 1000000000",
+                "m,host=a d_count=1i,d_max=1.0,d_mean=1.0,d_min=1.0,d_sum=1.0 1000000000",
+                "m,host=b d_count=1i,d_max=2.0,d_mean=2.0,d_min=2.0,d_sum=2.0 1000000000"
+            ),
+            Arrays.asList(lines)
+        );
+    }
+
+    @Test
+    public void waitsOneWindowBeforeClosing() {
+        PointAggregator aggregator = aggregator();
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        aggregator.add(1500L, new String[] { "a" }, new Object[] { 1 });
+
+        // the window ends at 2000 and still accepts late messages until 3000
+        assertEquals(0, aggregator.drain(2999L, false, encoder));
+        assertTrue(aggregator.add(1100L, new String[] { "a" }, new Object[] { 2 }));
+        assertEquals(1, aggregator.drain(3000L, false, encoder));
+        assertTrue(text(encoder).startsWith("m,host=a d_count=2i,"));
+    }
+
+    @Test
+    public void dropsMessagesBehindTheWatermark() {
+        PointAggregator aggregator = aggregator();
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        aggregator.drain(3500L, false, encoder);
+
+        assertFalse(aggregator.add(1999L, new String[] { "a" }, new Object[] { 1 }));
+        assertTrue(aggregator.add(2000L, new String[] { "a" }, new Object[] { 1 }));
+
+        // forcing a drain doesn't move the watermark
+        assertEquals(1, aggregator.drain(3500L, true, encoder));
+        assertTrue(aggregator.add(2000L, new String[] { "a" }, new Object[] { 1 }));
+    }
+
+    @Test
+    public void skipsSeriesWithoutValues() {
+        PointAggregator aggregator = aggregator();
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        aggregator.add(1000L, new String[] { "a" }, new Object[] { null });
+        aggregator.add(1000L, new String[] { "a" }, new Object[] { Double.NaN });
+
+        assertEquals(0, aggregator.drain(0L, true, encoder));
+        assertEquals(0, encoder.size());
+    }
+
+    private static PointAggregator aggregator() {
+        return new PointAggregator(WINDOW, "m", new String[] { "host" }, new String[] { "d" });
+    }
+
+    private static String text(LineProtocolEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,121 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.graylog2.plugin.Message;
+
+import org.joda.time.DateTime;
+
+import org.junit.Test;
+
+
+public class PointRouterTest {
+    private final PointRouter router = new PointRouter(
+        PointRouter.rules(
+            "main",
+            Arrays.asList("level=ERROR"),
+            Collections.<String>emptyList(),
+            Arrays.asList("D:duration"),
+            Arrays.asList(
+                "errors filter level=ERROR",
+                "errors filter status~5..",
+                "errors field I:status",
+                "slow filter level=ERROR",
+                "slow filter path~/api/.*",
+                "slow tag path",
+                "slow field D:duration"
+            )
+        ),
+        0, 0, 0, CardinalityGuard.Overflow.BUCKET, 0, null, null
+    );
+
+
+    @Test
+    public void routesToAllMatchingRules() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        assertEquals(PointBuilder.Outcome.WRITTEN, this.router.buildPoints(encoder, message(new Level("ERROR"), 503, "/api/x"), "db"));
+        assertEquals(
+            "main,source=web duration=12.5 1000000000\n"
+            + "errors,source=web status=503i 1000000000\n"
+            + "slow,path=/api/x,source=web duration=12.5 1000000000\n",
+            text(encoder)
+        );
+    }
+
+    @Test
+    public void appliesFiltersOfEachRule() {
+        LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+        assertEquals(PointBuilder.Outcome.WRITTEN, this.router.buildPoints(encoder, message(new Level("ERROR"), 200, "/static/x"), "db"));
+        assertEquals("main,source=web duration=12.5 1000000000\n", text(encoder));
+
+        encoder.reset();
+        assertEquals(PointBuilder.Outcome.FILTERED, this.router.buildPoints(encoder, message(new Level("INFO"), 503, "/api/x"), "db"));
+        assertEquals(0, encoder.size());
+    }
+
+    @Test
+    public void evaluatesSharedFiltersOnce() {
+        Level level = new Level("ERROR");
+
+        this.router.buildPoints(new LineProtocolEncoder(), message(level, 503, "/api/x"), "db");
+        assertEquals(1, level._reads);
+
+        // rules only keep the filters they don't share
+        for (PointBuilder builder : this.router.builders()) {
+            assertFalse(builder.filters().toString(), builder.filters().toString().contains("level"));
+        }
+    }
+
+    @Test
+    public void gathersItemsOfTheSameMeasurement() {
+        List<PointRouter.Rule> rules = PointRouter.rules("main", Collections.<String>emptyList(), Collections.<String>emptyList(), Arrays.asList("a"), Arrays.asList("main field b", " ", "other field c"));
+
+        assertEquals(2, rules.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownItems() {
+        PointRouter.rules("main", Collections.<String>emptyList(), Collections.<String>emptyList(), Arrays.asList("a"), Arrays.asList("other value c"));
+    }
+
+    private static Message message(Level level, int status, String path) {
+        Message message = new Message("request", "web", new DateTime(1000L));
+
+        message.addField("level", level);
+        message.addField("status", status);
+        message.addField("path", path);
+        message.addField("duration", 12.5);
+        return message;
+    }
+
+    private static String text(LineProtocolEncoder encoder) {
+        return new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Field value counting how many times filters read it.
+     */
+    private static final class Level {
+        private final String _value;
+        private int _reads;
+
+        Level(String value) {
+            this._value = value;
+        }
+
+        @Override
+        public String toString() {
+            this._reads++;
+            return this._value;
+        }
+    }
+}
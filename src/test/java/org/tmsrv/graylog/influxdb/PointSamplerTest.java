@@ -0,0 +1,61 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class PointSamplerTest {
+    private static final int MESSAGES = 200000;
+
+
+    @Test
+    public void decidesFromMessageContentOnly() {
+        PointSampler sampler = new PointSampler(0.3, "_id");
+        PointSampler other = new PointSampler(0.3, "_id");
+
+        for (int i = 0; i < 10000; i++) {
+            Object[] tags = { "web-" + (i % 7), null };
+            String id = "id-" + i;
+            boolean kept = sampler.keep("http", tags, id);
+
+            assertEquals(kept, sampler.keep("http", tags, id));
+            assertEquals(kept, other.keep("http", new Object[] { "web-" + (i % 7), null }, new StringBuilder(id)));
+        }
+    }
+
+    @Test
+    public void keepsTheConfiguredRate() {
+        for (double rate : new double[] { 0.01, 0.1, 0.5, 0.9 }) {
+            PointSampler sampler = new PointSampler(rate, "_id");
+            int kept = 0;
+
+            for (int i = 0; i < MESSAGES; i++) {
+                if (sampler.keep("http", new Object[] { "web-" + (i % 13) }, i)) {
+                    kept++;
+                }
+            }
+
+            double expected = rate * MESSAGES;
+
+            // well within 5 standard deviations
+            assertTrue("kept " + kept + " at " + rate, Math.abs(kept - expected) < 5 * Math.sqrt(expected * (1 - rate)));
+            assertEquals(1.0 / rate, sampler.weight(), 0.0);
+        }
+    }
+
+    @Test
+    public void keepsAllMessagesAtFullRate() {
+        PointSampler sampler = new PointSampler(1.0, "_id");
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(sampler.keep("http", new Object[0], i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRate() {
+        new PointSampler(0.0, "_id");
+    }
+}
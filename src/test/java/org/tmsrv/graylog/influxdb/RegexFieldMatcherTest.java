@@ -0,0 +1,86 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+
+public class RegexFieldMatcherTest {
+    private static final String[] LITERALS = {
+        "INFO", "INFO|WARN|ERROR", "^INFO|WARN$", "(INFO|WARN)", "(?:INFO|WARN)", "^(?:a|b|)$", "a\\.b|c\\|d", "a\\$", "x\\\\|y", "",
+    };
+    private static final String[] PATTERNS = {
+        "a.b", "INFO|WARN.*", "(?i)info", "\\d+", "a\\d", "(a)|(b)", "(a)(b)", "[ab]", "a{2}", "a\\Q.\\E",
+    };
+    private static final String[] VALUES = {
+        "", "INFO", "WARN", "ERROR", "INFO|WARN", "info", "a", "b", "a.b", "axb", "c|d", "a$", "a\\", "ab", "aa", "a1", "123", "x\\", "y", "WARNING",
+    };
+
+
+    @Test
+    public void matchesLiteralsWithoutRegex() {
+        for (String regex : LITERALS) {
+            assertTrue(regex, matcher(regex).isLiteral());
+            assertAgrees(regex);
+        }
+    }
+
+    @Test
+    public void matchesOtherPatternsWithRegex() {
+        for (String regex : PATTERNS) {
+            assertFalse(regex, matcher(regex).isLiteral());
+            assertAgrees(regex);
+            // remembered results are the same
+            assertAgrees(regex);
+        }
+    }
+
+    @Test
+    public void negatesMatches() {
+        PointBuilder.FieldMatcher matcher = PointBuilder.buildMatcher("level!~INFO|WARN");
+
+        assertEquals("level", matcher.field());
+        assertFalse(matcher.match("INFO"));
+        assertTrue(matcher.match("DEBUG"));
+        assertTrue(matcher.match(null));
+    }
+
+    @Test
+    public void boundsRememberedValues() {
+        PointBuilder.RegexFieldMatcher matcher = matcher("value-\\d+");
+
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(matcher.match("value-" + i));
+        }
+        assertTrue("remembered " + matcher.cacheSize(), matcher.cacheSize() > 0 && matcher.cacheSize() <= 1024);
+        // recent values stay remembered
+        assertTrue(matcher.match("value-99999"));
+
+        StringBuilder value = new StringBuilder("value-");
+
+        for (int i = 0; i < 300; i++) {
+            value.append('1');
+        }
+
+        int size = matcher.cacheSize();
+
+        assertTrue(matcher.match(value.toString()));
+        assertEquals("long values aren't remembered", size, matcher.cacheSize());
+    }
+
+    private static void assertAgrees(String regex) {
+        PointBuilder.RegexFieldMatcher matcher = matcher(regex);
+
+        for (String value : VALUES) {
+            assertEquals(regex + " ~ " + value, Pattern.matches(regex, value), matcher.match(value));
+        }
+    }
+
+    private static PointBuilder.RegexFieldMatcher matcher(String regex) {
+        return (PointBuilder.RegexFieldMatcher)PointBuilder.buildMatcher("field~" + regex);
+    }
+}
@@ -0,0 +1,67 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+
+public class SeriesCacheTest {
+    private static final int CAPACITY = 100;
+
+
+    @Test
+    public void cachesSeriesByTagValues() {
+        SeriesCache cache = new SeriesCache(CAPACITY);
+
+        assertNull(cache.get(key("web", 1)));
+        cache.put(key("web", 1), series("m,host=web,n=1"));
+
+        assertArrayEquals(series("m,host=web,n=1"), cache.get(key("web", 1)));
+        assertNull(cache.get(key("web", 2)));
+        assertNull(cache.get(key("web", "1")));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.hits());
+        assertEquals(3, cache.misses());
+    }
+
+    @Test
+    public void evictsBeyondTheCapacity() {
+        SeriesCache cache = new SeriesCache(CAPACITY);
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            cache.put(key("web", i), series("m,n=" + i));
+        }
+
+        assertTrue(String.valueOf(cache.size()), cache.size() <= CAPACITY);
+        assertTrue(String.valueOf(cache.size()), cache.size() >= CAPACITY / 2);
+        assertEquals(10 * CAPACITY - cache.size(), cache.evictions());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSeries() {
+        SeriesCache cache = new SeriesCache(CAPACITY);
+
+        cache.put(key("hot", 0), series("m,host=hot"));
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            assertNotNull(cache.get(key("hot", 0)));
+            cache.put(key("web", i), series("m,n=" + i));
+        }
+
+        assertNotNull(cache.get(key("hot", 0)));
+        assertNull(cache.get(key("web", 0)));
+    }
+
+    private static SeriesCache.Key key(Object... values) {
+        return new SeriesCache.Key(values);
+    }
+
+    private static byte[] series(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,63 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+
+public class ShardRingTest {
+    private static final int SERIES = 30000;
+
+
+    @Test
+    public void assignsSeriesConsistently() {
+        ShardRing ring = new ShardRing(new String[] { "http://a:8086", "http://b:8086", "http://c:8086" });
+        ShardRing other = new ShardRing(new String[] { "http://a:8086", "http://b:8086", "http://c:8086" });
+
+        for (int i = 0; i < SERIES; i++) {
+            byte[] series = series(i);
+
+            assertEquals(ring.shard(series, 0, series.length), other.shard(series, 0, series.length));
+        }
+    }
+
+    @Test
+    public void balancesSeries() {
+        ShardRing ring = new ShardRing(new String[] { "http://a:8086", "http://b:8086", "http://c:8086" });
+        int[] counts = new int[3];
+
+        for (int i = 0; i < SERIES; i++) {
+            byte[] series = series(i);
+
+            counts[ring.shard(series, 0, series.length)]++;
+        }
+        for (int count : counts) {
+            assertTrue("unbalanced shard (" + count + " of " + SERIES + ")", count > SERIES / 4 && count < SERIES * 5 / 12);
+        }
+    }
+
+    @Test
+    public void onlyMovesSeriesToAddedShard() {
+        ShardRing before = new ShardRing(new String[] { "http://a:8086", "http://b:8086", "http://c:8086" });
+        ShardRing after = new ShardRing(new String[] { "http://a:8086", "http://b:8086", "http://c:8086", "http://d:8086" });
+        int moved = 0;
+
+        for (int i = 0; i < SERIES; i++) {
+            byte[] series = series(i);
+            int shard = after.shard(series, 0, series.length);
+
+            if (shard != before.shard(series, 0, series.length)) {
+                assertEquals(3, shard);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved + " of " + SERIES, moved > SERIES / 6 && moved < SERIES / 3);
+    }
+
+    private static byte[] series(int i) {
+        return ("http,host=web-" + (i % 97) + ",path=/api/" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,100 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import java.util.regex.Pattern;
+
+import org.graylog2.plugin.Message;
+
+import org.joda.time.DateTime;
+
+import org.junit.Test;
+
+
+public class TargetResolverTest {
+    private static final WriteTarget FALLBACK = new WriteTarget("graylog", null);
+    private static final Pattern NAMES = Pattern.compile("[a-z][a-z0-9_]*");
+
+
+    @Test
+    public void usesNamesMatchingThePattern() {
+        List<String> discovered = new ArrayList<String>();
+        TargetResolver resolver = new TargetResolver("db", "rp", NAMES, FALLBACK, discovered::add);
+
+        assertEquals(new WriteTarget("app", "week"), resolver.resolve(message("app", "week")));
+        assertEquals(new WriteTarget("app", null), resolver.resolve(message(" app ", null)));
+        assertEquals(new WriteTarget("graylog", "week"), resolver.resolve(message("", "week")));
+        assertEquals(Arrays.asList("app"), discovered);
+    }
+
+    @Test
+    public void fallsBackForOtherNames() {
+        List<String> discovered = new ArrayList<String>();
+        TargetResolver resolver = new TargetResolver("db", "rp", NAMES, FALLBACK, discovered::add);
+
+        assertSame(FALLBACK, resolver.resolve(message("App", null)));
+        assertSame(FALLBACK, resolver.resolve(message("app;drop", null)));
+        assertSame(FALLBACK, resolver.resolve(message("app", "a.b")));
+        assertTrue(discovered.isEmpty());
+
+        // without a pattern, only the fallback names are used
+        resolver = new TargetResolver("db", "rp", null, FALLBACK, null);
+        assertSame(FALLBACK, resolver.resolve(message("app", null)));
+        assertEquals(new WriteTarget("graylog", null), resolver.resolve(message(null, null)));
+    }
+
+    @Test
+    public void boundsTheNumberOfTargets() {
+        List<String> discovered = new ArrayList<String>();
+        TargetResolver resolver = new TargetResolver("db", null, NAMES, FALLBACK, discovered::add);
+
+        for (int i = 0; i < TargetResolver.MAX_TARGETS; i++) {
+            assertEquals(new WriteTarget("db" + i, null), resolver.resolve(message("db" + i, null)));
+        }
+        assertSame(FALLBACK, resolver.resolve(message("more", null)));
+        assertEquals(TargetResolver.MAX_TARGETS, discovered.size());
+
+        // known targets are still resolved
+        assertEquals(new WriteTarget("db7", null), resolver.resolve(message("db7", null)));
+    }
+
+    @Test
+    public void groupsMessagesInOrder() {
+        TargetResolver resolver = new TargetResolver("db", null, NAMES, FALLBACK, null);
+        Message first = message("app", null);
+        Message second = message("Bad", null);
+        Message third = message("app", null);
+        Map<WriteTarget, List<Message>> groups = resolver.group(Arrays.asList(first, second, third));
+
+        assertEquals(Arrays.asList(new WriteTarget("app", null), FALLBACK), new ArrayList<WriteTarget>(groups.keySet()));
+        assertEquals(Arrays.asList(first, third), groups.get(new WriteTarget("app", null)));
+        assertEquals(Arrays.asList(second), groups.get(FALLBACK));
+    }
+
+    @Test
+    public void isStaticWithoutFields() {
+        TargetResolver resolver = new TargetResolver(null, null, NAMES, FALLBACK, null);
+
+        assertTrue(resolver.isStatic());
+        assertSame(FALLBACK, resolver.resolve(message("app", "week")));
+    }
+
+    private static Message message(String database, String retentionPolicy) {
+        Message message = new Message("request", "web", new DateTime(1000L));
+
+        if (database != null) {
+            message.addField("db", database);
+        }
+        if (retentionPolicy != null) {
+            message.addField("rp", retentionPolicy);
+        }
+        return message;
+    }
+}
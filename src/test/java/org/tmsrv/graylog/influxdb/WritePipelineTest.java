@@ -0,0 +1,182 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class WritePipelineTest {
+    private static final long TIMEOUT_MS = 5000;
+    private static final WriteTarget DB1 = new WriteTarget("db1", null);
+    private static final WriteTarget DB2 = new WriteTarget("db2", "rp");
+
+    private final InfluxClientMetrics metrics = new InfluxClientMetrics(new MetricRegistry(), "test");
+    private final BlockingQueue<String> written = new LinkedBlockingQueue<String>();
+    private final BlockingQueue<String> spilled = new LinkedBlockingQueue<String>();
+    // the first write waits until released
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private WritePipeline pipeline;
+
+
+    @After
+    public void close() {
+        this.released.countDown();
+        if (this.pipeline != null) {
+            this.pipeline.close();
+        }
+        this.metrics.close();
+    }
+
+    @Test
+    public void dropsNewestChunkWhenFull() throws Exception {
+        this.fill(WritePipeline.OverflowPolicy.DROP_NEWEST);
+        this.pipeline.submit(DB1, bytes("d\n"), 1);
+        this.released.countDown();
+
+        assertEquals("db1|a\n", this.next());
+        assertEquals("db1|b\nb\nc\nc\n", this.next());
+        assertEquals(1, this.metrics.dropped().getCount());
+    }
+
+    @Test
+    public void dropsOldestChunksWhenFull() throws Exception {
+        this.fill(WritePipeline.OverflowPolicy.DROP_OLDEST);
+        this.pipeline.submit(DB1, bytes("d\n"), 1);
+        this.released.countDown();
+
+        assertEquals("db1|a\n", this.next());
+        assertEquals("db1|c\nc\nd\n", this.next());
+        assertEquals(1, this.metrics.dropped().getCount());
+    }
+
+    @Test
+    public void spillsChunkWhenFull() throws Exception {
+        this.fill(WritePipeline.OverflowPolicy.SPILL);
+        this.pipeline.submit(DB1, bytes("d\n"), 1);
+        assertEquals("db1|d\n", this.spilled.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        this.released.countDown();
+
+        assertEquals("db1|a\n", this.next());
+        assertEquals("db1|b\nb\nc\nc\n", this.next());
+        assertEquals(0, this.metrics.dropped().getCount());
+    }
+
+    @Test
+    public void blocksUntilRoomWhenFull() throws Exception {
+        this.fill(WritePipeline.OverflowPolicy.BLOCK);
+
+        Thread submitter = new Thread(() -> {
+            try {
+                this.pipeline.submit(DB1, bytes("d\n"), 1);
+            } catch (InterruptedException e) {
+                // left waiting, which fails the test
+            }
+        });
+
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+        this.released.countDown();
+        submitter.join(TIMEOUT_MS);
+
+        assertEquals("db1|a\n", this.next());
+        assertEquals("db1|b\nb\nc\nc\n", this.next());
+        assertEquals("db1|d\n", this.next());
+        assertEquals(0, this.metrics.dropped().getCount());
+    }
+
+    @Test
+    public void batchesChunksOfTheSameTarget() throws Exception {
+        this.pipeline = this.pipeline(WritePipeline.OverflowPolicy.BLOCK, 100, 10, 0);
+        this.pipeline.submit(DB1, bytes("a\n"), 1);
+        assertTrue(this.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        this.pipeline.submit(DB1, bytes("b\n"), 1);
+        this.pipeline.submit(DB2, bytes("c\n"), 1);
+        this.pipeline.submit(DB1, bytes("d\n"), 1);
+        this.released.countDown();
+
+        assertEquals("db1|a\n", this.next());
+        assertEquals("db1|b\nd\n", this.next());
+        assertEquals("db2.rp|c\n", this.next());
+        assertEquals(0, this.pipeline.size());
+    }
+
+    @Test
+    public void takesChunksLargerThanTheBatchInParts() throws Exception {
+        this.released.countDown();
+        this.pipeline = this.pipeline(WritePipeline.OverflowPolicy.BLOCK, 100, 4, 1000);
+        this.pipeline.controller().failed();
+        this.pipeline.controller().failed();
+        assertEquals(1, this.pipeline.controller().size());
+
+        this.pipeline.submit(DB1, bytes("a\nb\nc\n"), 3);
+        assertEquals("db1|a\n", this.next());
+        assertEquals("db1|b\n", this.next());
+        assertEquals("db1|c\n", this.next());
+
+        this.pipeline.controller().succeeded(0);
+        this.pipeline.submit(DB1, bytes("d\ne\nf\n"), 3);
+        assertEquals("db1|d\ne\n", this.next());
+        assertEquals("db1|f\n", this.next());
+        assertEquals(0, this.pipeline.size());
+    }
+
+    /**
+     * Queue chunks up to the capacity while the writer is held on the first one.
+     */
+    private void fill(WritePipeline.OverflowPolicy policy) throws Exception {
+        this.pipeline = this.pipeline(policy, 4, 10, 0);
+        this.pipeline.submit(DB1, bytes("a\n"), 1);
+        assertTrue(this.started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        this.pipeline.submit(DB1, bytes("b\nb\n"), 2);
+        this.pipeline.submit(DB1, bytes("c\nc\n"), 2);
+        assertEquals(4, this.pipeline.size());
+    }
+
+    private WritePipeline pipeline(WritePipeline.OverflowPolicy policy, int capacity, int batchSize, long targetLatencyMillis) {
+        WritePipeline.Settings settings = new WritePipeline.Settings(capacity, batchSize, 0, 1, policy, targetLatencyMillis, 0, 0);
+
+        return new WritePipeline("test", settings, this::write, this::spill, this.metrics);
+    }
+
+    private void write(WriteTarget target, byte[] data, int offset, int length) throws IOException {
+        this.started.countDown();
+        try {
+            this.released.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        this.written.add(name(target) + "|" + new String(data, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private void spill(WriteTarget target, byte[] data) {
+        this.spilled.add(name(target) + "|" + new String(data, StandardCharsets.UTF_8));
+    }
+
+    private String next() throws InterruptedException {
+        return this.written.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static String name(WriteTarget target) {
+        return target.retentionPolicy() != null ? target.database() + "." + target.retentionPolicy() : target.database();
+    }
+
+    private static byte[] bytes(String lines) {
+        return lines.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package org.tmsrv.graylog.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Comparator;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class WriteSpoolTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private final BlockingQueue<String> replayed = new LinkedBlockingQueue<String>();
+    private Path directory;
+
+
+    @Before
+    public void open() throws IOException {
+        this.directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void replaysBatchesInOrder() throws Exception {
+        try (WriteSpool spool = new WriteSpool(this.directory, 1024 * 1024, this::collect)) {
+            append(spool, "db1.", "m v=1i 1\n");
+            append(spool, "db2.rp", "m v=2i 2\n");
+            append(spool, "db1.", "m v=3i 3\n");
+
+            assertEquals("db1.|m v=1i 1\n", this.next());
+            assertEquals("db2.rp|m v=2i 2\n", this.next());
+            assertEquals("db1.|m v=3i 3\n", this.next());
+        }
+    }
+
+    @Test
+    public void resumesFromCheckpointAfterRestart() throws Exception {
+        AtomicInteger accepted = new AtomicInteger(1);
+
+        try (WriteSpool spool = new WriteSpool(this.directory, 1024 * 1024, (target, data, offset, length) -> {
+            if (accepted.getAndDecrement() <= 0) {
+                throw new IOException("unavailable");
+            }
+            this.collect(target, data, offset, length);
+        })) {
+            append(spool, "db.", "a 1\n");
+            append(spool, "db.", "b 2\n");
+            assertEquals("db.|a 1\n", this.next());
+        }
+        try (WriteSpool spool = new WriteSpool(this.directory, 1024 * 1024, this::collect)) {
+            assertTrue(spool.size() > 0);
+            assertEquals("db.|b 2\n", this.next());
+            assertNull(this.replayed.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void truncatesTornRecordOnRecovery() throws Exception {
+        try (WriteSpool spool = new WriteSpool(this.directory, 1024 * 1024, (target, data, offset, length) -> {
+            throw new IOException("unavailable");
+        })) {
+            append(spool, "db.", "a 1\n");
+            append(spool, "db.", "b 2\n");
+        }
+
+        // flip the last byte of the second record, its checksum no longer matches
+        Path segment = this.segment();
+        int end = 2 * (8 + 2 + "db.".length() + "a 1\n".length());
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+
+            channel.read(last, end - 1);
+            last.put(0, (byte)(last.get(0) ^ 0x20));
+            last.rewind();
+            channel.write(last, end - 1);
+        }
+
+        try (WriteSpool spool = new WriteSpool(this.directory, 1024 * 1024, this::collect)) {
+            assertEquals("db.|a 1\n", this.next());
+            append(spool, "db.", "c 3\n");
+            assertEquals("db.|c 3\n", this.next());
+            assertNull(this.replayed.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void rejectsBatchesOnceFull() throws Exception {
+        byte[] data = new byte[40 * 1024];
+
+        try (WriteSpool spool = new WriteSpool(this.directory, 64 * 1024, (target, bytes, offset, length) -> {
+            throw new IOException("unavailable");
+        })) {
+            assertTrue(spool.append("db.", data, 0, data.length));
+            assertFalse(spool.append("db.", data, 0, data.length));
+            assertEquals(64 * 1024, spool.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUndersizedSpool() throws Exception {
+        new WriteSpool(this.directory, 1024, this::collect);
+    }
+
+    private void collect(String target, byte[] data, int offset, int length) {
+        this.replayed.add(target + "|" + new String(data, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private String next() throws InterruptedException {
+        return this.replayed.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private Path segment() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "segment-*.spool")) {
+            return files.iterator().next();
+        }
+    }
+
+    private static void append(WriteSpool spool, String target, String lines) throws IOException {
+        byte[] data = lines.getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(spool.append(target, data, 0, data.length));
+    }
+}